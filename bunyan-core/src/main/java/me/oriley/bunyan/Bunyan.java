@@ -16,6 +16,7 @@
 
 package me.oriley.bunyan;
 
+import android.os.Looper;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -25,6 +26,8 @@ import android.util.Log;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public final class Bunyan {
 
@@ -35,21 +38,65 @@ public final class Bunyan {
 
     private static final String TAG = Bunyan.class.getSimpleName();
 
+    private static final int LEVEL_COUNT = Log.ASSERT + 1;
+
+    // Leaves room for a level mask alongside the generation in an int, see getLevelState
+    static final int LEVEL_STATE_SHIFT = 8;
+    private static final int GENERATION_MASK = -1 >>> LEVEL_STATE_SHIFT;
+
+    @NonNull
+    private static final Object sAppenderLock = new Object();
+
+    // Copy on write, so logging never locks or sees a partially updated set of appenders
     @NonNull
-    private static final List<BunyanAppender> sAppenders = new ArrayList<>();
+    private static volatile BunyanAppender[] sAppenders;
+
+    // Indexed by level, the appenders whose threshold that level meets. Rebuilt along with sAppenders
+    @NonNull
+    private static volatile BunyanAppender[][] sLevelAppenders;
 
     @NonNull
     @Level
-    private static final Map<String, Integer> sLoggerThresholds = new HashMap<>();
+    private static final Map<String, Integer> sLoggerThresholds = new ConcurrentHashMap<>();
+
+    @NonNull
+    private static final BunyanPackageTrie sPackageTrie;
 
     @NonNull
     private static final Map<String, String> sAppenderTagPatterns;
 
     @Level
-    private static int sGlobalThreshold = Log.INFO;
+    private static volatile int sGlobalThreshold = Log.INFO;
+
+    // Incremented whenever a level or the appenders change, so loggers know to recompute their level state
+    private static volatile int sGeneration;
+
+    @NonNull
+    private static final String sGlobalTagPattern;
 
     private static final BunyanTagEncoder sTagEncoder = new BunyanTagEncoder();
 
+    @Nullable
+    private static final BunyanAsyncDispatcher sAsyncDispatcher;
+
+    // Duplicate windows in nanoseconds, by logger name. Only read when loggers are created
+    @NonNull
+    private static final Map<String, Long> sLoggerDuplicateWindows = new HashMap<>();
+
+    private static final long sGlobalDuplicateWindow;
+
+    // Only created if any logger has a duplicate window
+    @Nullable
+    private static final BunyanDuplicateFilter sDuplicateFilter;
+
+    private static volatile boolean sCaptureCaller;
+
+    private static volatile boolean sCaptureMainThread;
+
+    private static volatile boolean sCaptureThreadName;
+
+    private static volatile boolean sCaptureTimestamp;
+
     static {
         // Load config from plugin generated shim.
         sGlobalThreshold = parseLevel(BunyanConfig.getGlobalLevel());
@@ -57,16 +104,35 @@ public final class Bunyan {
         if (TextUtils.isEmpty(globalTagPattern)) {
             globalTagPattern = "%S";
         }
+        sGlobalTagPattern = globalTagPattern;
 
         for (Map.Entry<String, String> entry : BunyanConfig.getLoggerThresholdMap().entrySet()) {
             sLoggerThresholds.put(entry.getKey(), parseLevel(entry.getValue()));
         }
 
+        String[] packageLevels = BunyanConfig.getPackageTrieLevels();
+        int[] packageThresholds = new int[packageLevels.length];
+        for (int i = 0; i < packageLevels.length; i++) {
+            packageThresholds[i] = packageLevels[i] != null ? parseLevel(packageLevels[i]) :
+                    BunyanPackageTrie.NO_THRESHOLD;
+        }
+        sPackageTrie = new BunyanPackageTrie(BunyanConfig.getPackageTrieSegments(),
+                BunyanConfig.getPackageTrieChildren(), packageThresholds);
+
+        sGlobalDuplicateWindow = TimeUnit.MILLISECONDS.toNanos(Math.max(0, BunyanConfig.getGlobalDuplicateWindow()));
+        for (Map.Entry<String, String> entry : BunyanConfig.getLoggerDuplicateWindowMap().entrySet()) {
+            sLoggerDuplicateWindows.put(entry.getKey(), parseDuplicateWindow(entry.getValue()));
+        }
+        sDuplicateFilter = sGlobalDuplicateWindow > 0 || !sLoggerDuplicateWindows.isEmpty()
+                ? new BunyanDuplicateFilter() : null;
+
         sAppenderTagPatterns = BunyanConfig.getAppenderTagPatternMap();
+        Map<String, String> appenderThresholds = BunyanConfig.getAppenderThresholdMap();
+        List<BunyanAppender> appenders = new ArrayList<>();
         for (Class c : BunyanConfig.getAppenderList()) {
             try {
                 BunyanAppender bunyanAppender = (BunyanAppender) c.newInstance();
-                sAppenders.add(bunyanAppender);
+                appenders.add(bunyanAppender);
 
                 String name = c.getName();
                 if (sAppenderTagPatterns.containsKey(name)) {
@@ -74,10 +140,23 @@ public final class Bunyan {
                 } else {
                     bunyanAppender.setTagPattern(globalTagPattern);
                 }
+
+                if (appenderThresholds.containsKey(name)) {
+                    bunyanAppender.setThreshold(parseLevel(appenderThresholds.get(name)));
+                }
             } catch (Throwable t) {
                 Log.e(TAG, "Error creating appender: " + c, t);
             }
         }
+        setAppenders(appenders.toArray(new BunyanAppender[appenders.size()]));
+
+        if (BunyanConfig.getAsyncEnabled()) {
+            sAsyncDispatcher = new BunyanAsyncDispatcher(BunyanConfig.getAsyncBufferSize(),
+                    parseOverflowPolicy(BunyanConfig.getAsyncOverflowPolicy()),
+                    parseLevel(BunyanConfig.getAsyncOverflowLevel()));
+        } else {
+            sAsyncDispatcher = null;
+        }
     }
 
     @Level
@@ -100,37 +179,383 @@ public final class Bunyan {
         }
     }
 
+    @BunyanAsyncDispatcher.OverflowPolicy
+    private static int parseOverflowPolicy(@Nullable String policy) {
+        if ("BLOCK".equals(policy)) {
+            return BunyanAsyncDispatcher.OVERFLOW_BLOCK;
+        } else if ("DROP_OLDEST".equals(policy)) {
+            return BunyanAsyncDispatcher.OVERFLOW_DROP_OLDEST;
+        } else if ("DROP_BELOW_LEVEL".equals(policy)) {
+            return BunyanAsyncDispatcher.OVERFLOW_DROP_BELOW_LEVEL;
+        } else {
+            Log.e(TAG, "Invalid overflow policy " + policy + ", using default (BLOCK)");
+            return BunyanAsyncDispatcher.OVERFLOW_BLOCK;
+        }
+    }
+
+    // Milliseconds in config, nanoseconds once parsed
+    private static long parseDuplicateWindow(@Nullable String window) {
+        try {
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(0, Long.parseLong(window)));
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Invalid duplicate window " + window + ", using default (0)");
+            return 0;
+        }
+    }
+
+    /*
+     * Threshold from the most specific package configured for a logger, or NO_THRESHOLD. Package thresholds can't
+     * change at runtime, so loggers look this up once and pass it to getLevelState.
+     */
+    static int getPackageThreshold(@NonNull String loggerName) {
+        return sPackageTrie.getThreshold(loggerName);
+    }
+
+    // A logger's own threshold takes precedence over its package's, which takes precedence over the global threshold
     @Level
-    static int getThreshold(@NonNull String loggerName) {
-        if (sLoggerThresholds.containsKey(loggerName)) {
+    private static int getThreshold(@NonNull String loggerName, int packageThreshold) {
+        Integer threshold = sLoggerThresholds.get(loggerName);
+        if (threshold != null) {
             //noinspection ResourceType
-            return sLoggerThresholds.get(loggerName);
-        } else {
-            return sGlobalThreshold;
+            return threshold;
+        }
+        //noinspection ResourceType
+        return packageThreshold != BunyanPackageTrie.NO_THRESHOLD ? packageThreshold : sGlobalThreshold;
+    }
+
+    // Window within which repeats of an event are collapsed, see BunyanDuplicateFilter, or 0 for none
+    static long getDuplicateWindowNanos(@NonNull String loggerName) {
+        Long window = sLoggerDuplicateWindows.get(loggerName);
+        return window != null ? window : sGlobalDuplicateWindow;
+    }
+
+    // Compared against the generation stored in each logger's level state
+    static int getGeneration() {
+        return sGeneration;
+    }
+
+    /*
+     * The current generation in the upper bits, and a bit for each level that the logger would pass to at least one
+     * appender in the lower bits. Read the generation first, so that a change made while this is being computed
+     * can't be missed.
+     */
+    static int getLevelState(@NonNull String loggerName, int packageThreshold) {
+        int generation = sGeneration;
+        int threshold = getThreshold(loggerName, packageThreshold);
+        BunyanAppender[][] levelAppenders = sLevelAppenders;
+
+        int state = generation << LEVEL_STATE_SHIFT;
+        for (int level = Math.max(threshold, 0); level < LEVEL_COUNT; level++) {
+            if (levelAppenders[level].length > 0) {
+                state |= 1 << level;
+            }
+        }
+        return state;
+    }
+
+    /*
+     * Changes the threshold of a logger by name (the class name, for class loggers) at runtime. Existing loggers pick
+     * up the change on their next call.
+     */
+    public static void setLevel(@NonNull String loggerName, @Level int level) {
+        sLoggerThresholds.put(loggerName, level);
+        nextGeneration();
+    }
+
+    // Names of the loggers created through the logger factories so far, sorted
+    @NonNull
+    public static Set<String> getLoggerNames() {
+        return BunyanLoggerRegistry.getLoggerNames();
+    }
+
+    // Reverts a logger to the global threshold
+    public static void clearLevel(@NonNull String loggerName) {
+        sLoggerThresholds.remove(loggerName);
+        nextGeneration();
+    }
+
+    // Changes the threshold for all loggers without their own
+    public static void setGlobalLevel(@Level int level) {
+        sGlobalThreshold = level;
+        nextGeneration();
+    }
+
+    private static void nextGeneration() {
+        synchronized (sAppenderLock) {
+            sGeneration = (sGeneration + 1) & GENERATION_MASK;
         }
     }
 
     public static void addAppender(@NonNull BunyanAppender appender) {
-        sAppenders.add(appender);
+        addAppenders(appender);
+    }
+
+    // Only events at or above level will be passed to the appender
+    public static void addAppender(@NonNull BunyanAppender appender, @Level int level) {
+        synchronized (sAppenderLock) {
+            appender.setThreshold(level);
+            addAppenders(appender);
+        }
     }
 
     public static void addAppenders(@NonNull BunyanAppender... appenders) {
-        Collections.addAll(sAppenders, appenders);
+        synchronized (sAppenderLock) {
+            BunyanAppender[] current = sAppenders;
+            BunyanAppender[] updated = Arrays.copyOf(current, current.length + appenders.length);
+            for (int i = 0; i < appenders.length; i++) {
+                BunyanAppender appender = appenders[i];
+                if (appender.getTagPattern() == null) {
+                    appender.setTagPattern(sGlobalTagPattern);
+                }
+                updated[current.length + i] = appender;
+            }
+            setAppenders(updated);
+        }
+    }
+
+    public static boolean removeAppender(@NonNull BunyanAppender appender) {
+        synchronized (sAppenderLock) {
+            BunyanAppender[] current = sAppenders;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == appender) {
+                    BunyanAppender[] updated = new BunyanAppender[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    setAppenders(updated);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static void setAppenders(@NonNull BunyanAppender[] appenders) {
+        boolean captureCaller = false;
+        boolean captureMainThread = false;
+        boolean captureThreadName = false;
+        boolean captureTimestamp = false;
+        for (BunyanAppender appender : appenders) {
+            BunyanTagTemplate template = appender.getTagTemplate();
+            boolean usesEventDetails = appender.usesEventDetails();
+            captureCaller |= template.usesCaller;
+            captureMainThread |= template.usesMainThread;
+            captureThreadName |= template.usesThreadName || usesEventDetails;
+            captureTimestamp |= usesEventDetails;
+        }
+
+        sCaptureCaller = captureCaller;
+        BunyanCallSite.setRequired(captureCaller);
+        sCaptureMainThread = captureMainThread;
+        sCaptureThreadName = captureThreadName;
+        sCaptureTimestamp = captureTimestamp;
+
+        BunyanAppender[][] levelAppenders = new BunyanAppender[LEVEL_COUNT][];
+        for (int level = 0; level < LEVEL_COUNT; level++) {
+            int count = 0;
+            for (BunyanAppender appender : appenders) {
+                if (level >= appender.getThreshold()) {
+                    count++;
+                }
+            }
+
+            levelAppenders[level] = new BunyanAppender[count];
+            count = 0;
+            for (BunyanAppender appender : appenders) {
+                if (level >= appender.getThreshold()) {
+                    levelAppenders[level][count++] = appender;
+                }
+            }
+        }
+
+        sAppenders = appenders;
+        sLevelAppenders = levelAppenders;
+        nextGeneration();
+    }
+
+    /*
+     * When async logging is enabled, blocks until all buffered events have been passed to the appenders. Buffered
+     * events are flushed on an uncaught exception once BunyanCrashHandler is installed, but call this before any
+     * deliberate process exit.
+     */
+    public static void flush() {
+        if (sDuplicateFilter != null) {
+            sDuplicateFilter.flush();
+            logSummaries(sDuplicateFilter);
+        }
+
+        if (sAsyncDispatcher != null) {
+            sAsyncDispatcher.flush();
+        }
+    }
+
+    /*
+     * Lookups of parsed message patterns, only counted after setPatternCacheCounting(true). Misses should level off
+     * once every format string has been seen, unless patterns are being built at runtime (i.e. by concatenating
+     * arguments rather than using placeholders).
+     */
+    public static void setPatternCacheCounting(boolean counting) {
+        MessageFormatter.setPatternCacheCounting(counting);
+    }
+
+    public static long getPatternCacheHitCount() {
+        return MessageFormatter.getPatternCacheHitCount();
+    }
+
+    public static long getPatternCacheMissCount() {
+        return MessageFormatter.getPatternCacheMissCount();
     }
 
     static void logEvent(@Level int level,
                          @NonNull String loggerName,
                          @Nullable Class loggerClass,
-                         @Nullable String message,
+                         long duplicateWindowNanos,
+                         @NonNull BunyanMessage message,
+                         @Nullable BunyanFields fields,
                          @Nullable Throwable t) {
-        if (message == null) {
-            // Not logging a null message. That would be stupid.
+        // Caller details are captured once here, as only the calling thread can resolve them. A build time mark is
+        // taken first, so that it's consumed even if the event is dropped as a repeat
+        boolean captureCaller = sCaptureCaller;
+        BunyanCallSite.Frame frame = captureCaller ? BunyanCallSite.takeFrame() : null;
+        String methodName = frame != null ? frame.methodName : null;
+        int lineNumber = frame != null ? frame.lineNumber : 0;
+
+        // Checked before anything else is captured, so repeats cost as little as possible
+        BunyanDuplicateFilter filter = sDuplicateFilter;
+        if (filter != null && !filterDuplicate(filter, level, loggerName, loggerClass, duplicateWindowNanos, message)) {
+            return;
+        }
+
+        if (captureCaller && frame == null) {
+            StackTraceElement caller = sTagEncoder.findCaller();
+            if (caller != null) {
+                methodName = caller.getMethodName();
+                lineNumber = caller.getLineNumber();
+            }
+        }
+        boolean mainThread = sCaptureMainThread && Looper.myLooper() == Looper.getMainLooper();
+        String threadName = sCaptureThreadName ? Thread.currentThread().getName() : null;
+        long timestamp = sCaptureTimestamp ? System.currentTimeMillis() : 0;
+        BunyanMdc.Snapshot mdc = BunyanMdc.getSnapshot();
+
+        if (sAsyncDispatcher != null) {
+            // Arguments may be changed once the caller returns, so the message has to be formatted now
+            sAsyncDispatcher.enqueue(level, loggerName, loggerClass, message.getString(), fields, t, timestamp,
+                    threadName, mainThread, methodName, lineNumber, mdc);
+        } else {
+            dispatchEvent(level, loggerName, loggerClass, message, fields, t, timestamp, threadName, mainThread,
+                    methodName, lineNumber, mdc);
+        }
+    }
+
+    /*
+     * Whether the event should be logged, false for a repeat within its logger's window. Counts that have fallen due
+     * are reported here too, whichever logger the event is from, so a burst that stops is reported with the next event.
+     */
+    private static boolean filterDuplicate(@NonNull BunyanDuplicateFilter filter,
+                                           @Level int level,
+                                           @NonNull String loggerName,
+                                           @Nullable Class loggerClass,
+                                           long windowNanos,
+                                           @NonNull BunyanMessage message) {
+        long deadline = filter.getDeadline();
+        boolean pending = deadline != BunyanDuplicateFilter.NO_DEADLINE;
+        if (windowNanos <= 0 && !pending) {
+            return true;
+        }
+
+        long now = System.nanoTime();
+        if (pending) {
+            filter.reportExpired(now);
+        }
+
+        boolean accepted = windowNanos <= 0 || filter.accept(level, loggerName, loggerClass, message.getPattern(),
+                windowNanos, now);
+        if (!accepted && sAsyncDispatcher != null && filter.getDeadline() != deadline) {
+            // A count falls due sooner than the worker knows about
+            sAsyncDispatcher.wakeUp();
+        }
+
+        if (filter.hasSummaries()) {
+            logSummaries(filter);
+        }
+        return accepted;
+    }
+
+    /*
+     * Called by the async worker while idle. Reports counts that have fallen due, and returns the nanoseconds until
+     * the next one does, or -1 if there's none.
+     */
+    static long reportExpiredSummaries() {
+        BunyanDuplicateFilter filter = sDuplicateFilter;
+        if (filter == null) {
+            return -1;
+        }
+
+        long now = System.nanoTime();
+        filter.reportExpired(now);
+        if (filter.hasSummaries()) {
+            logSummaries(filter);
+        }
+        return filter.getDelay(now);
+    }
+
+    // Summaries aren't from any one call, so they have no caller details, thread or MDC
+    private static void logSummaries(@NonNull BunyanDuplicateFilter filter) {
+        BunyanDuplicateFilter.Summary summary;
+        while ((summary = filter.pollSummary()) != null) {
+            long timestamp = sCaptureTimestamp ? System.currentTimeMillis() : 0;
+            if (sAsyncDispatcher != null) {
+                sAsyncDispatcher.enqueue(summary.level, summary.loggerName, summary.loggerClass, summary.message, null,
+                        null, timestamp, null, false, null, 0, BunyanMdc.Snapshot.EMPTY);
+            } else {
+                dispatchEvent(summary.level, summary.loggerName, summary.loggerClass, summary.message, null, null,
+                        timestamp, null, false, null, 0, BunyanMdc.Snapshot.EMPTY);
+            }
+        }
+    }
+
+    static void dispatchEvent(@Level int level,
+                              @NonNull String loggerName,
+                              @Nullable Class loggerClass,
+                              @NonNull String message,
+                              @Nullable BunyanFields fields,
+                              @Nullable Throwable t,
+                              long timestamp,
+                              @Nullable String threadName,
+                              boolean mainThread,
+                              @Nullable String methodName,
+                              int lineNumber,
+                              @NonNull BunyanMdc.Snapshot mdc) {
+        BunyanMessage literal = BunyanMessage.obtain().setLiteral(message);
+        try {
+            dispatchEvent(level, loggerName, loggerClass, literal, fields, t, timestamp, threadName, mainThread,
+                    methodName, lineNumber, mdc);
+        } finally {
+            literal.recycle();
+        }
+    }
+
+    private static void dispatchEvent(@Level int level,
+                                      @NonNull String loggerName,
+                                      @Nullable Class loggerClass,
+                                      @NonNull BunyanMessage message,
+                                      @Nullable BunyanFields fields,
+                                      @Nullable Throwable t,
+                                      long timestamp,
+                                      @Nullable String threadName,
+                                      boolean mainThread,
+                                      @Nullable String methodName,
+                                      int lineNumber,
+                                      @NonNull BunyanMdc.Snapshot mdc) {
+        if (level < 0 || level >= LEVEL_COUNT) {
             return;
         }
 
-        for (BunyanAppender appender : sAppenders) {
-            String tag = sTagEncoder.encodeTag(appender.getTagPattern(), level, loggerName, loggerClass);
-            appender.logEvent(level, tag, message, t);
+        BunyanAppender[] appenders = sLevelAppenders[level];
+        for (BunyanAppender appender : appenders) {
+            String tag = sTagEncoder.encodeTag(appender, level, loggerName, loggerClass, threadName, mainThread,
+                    methodName, lineNumber, mdc);
+            appender.logEvent(level, tag, message, fields, mdc, timestamp, threadName, t);
         }
     }
 }
@@ -18,6 +18,7 @@ package me.oriley.bunyan;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.Log;
 import me.oriley.bunyan.Bunyan.Level;
 
 @SuppressWarnings({"WeakerAccess", "unused"})
@@ -26,13 +27,112 @@ public abstract class BunyanAppender {
     @NonNull
     private String mTagPattern;
 
+    @NonNull
+    private BunyanTagTemplate mTagTemplate;
+
+    @Nullable
+    private BunyanTagCache mTagCache;
+
+    // Lowest level passed to this appender, on top of the logger's own threshold
+    @Level
+    private int mThreshold = Log.VERBOSE;
+
     public abstract void logEvent(@Level int level, @NonNull String tag, @NonNull String message, @Nullable Throwable t);
 
+    /*
+     * Receives every event, with the message still unformatted. Override this instead to skip formatting for events
+     * that will be filtered out, or to write the pattern and arguments as they are.
+     */
+    public void logEvent(@Level int level, @NonNull String tag, @NonNull BunyanMessage message, @Nullable Throwable t) {
+        logEvent(level, tag, message.getString(), t);
+    }
+
+    /*
+     * Receives events logged with fields, see BunyanEventBuilder. By default the fields are added to the end of the
+     * message as key=value pairs, so appenders that don't override this still show them.
+     */
+    public void logEvent(@Level int level,
+                         @NonNull String tag,
+                         @NonNull BunyanMessage message,
+                         @NonNull BunyanFields fields,
+                         @Nullable Throwable t) {
+        if (fields.size() == 0) {
+            logEvent(level, tag, message, t);
+            return;
+        }
+
+        BunyanMessage literal = BunyanMessage.obtain().setLiteral(fields.getString(message));
+        try {
+            logEvent(level, tag, literal, t);
+        } finally {
+            literal.recycle();
+        }
+    }
+
+    /*
+     * Receives every event, along with the MDC of the thread it was logged on, see BunyanMdc. By default the event is
+     * passed on to one of the variants above without it.
+     */
+    public void logEvent(@Level int level,
+                         @NonNull String tag,
+                         @NonNull BunyanMessage message,
+                         @Nullable BunyanFields fields,
+                         @NonNull BunyanMdc.Snapshot mdc,
+                         @Nullable Throwable t) {
+        if (fields != null) {
+            logEvent(level, tag, message, fields, t);
+        } else {
+            logEvent(level, tag, message, t);
+        }
+    }
+
+    /*
+     * Receives every event, along with the time it was logged and the name of the thread it was logged on. With async
+     * logging enabled, both differ from the time and thread this is called on. They are only captured when at least
+     * one appender returns true from usesEventDetails(), and are 0 and null otherwise. By default the event is passed
+     * on to the variant above without them.
+     */
+    public void logEvent(@Level int level,
+                         @NonNull String tag,
+                         @NonNull BunyanMessage message,
+                         @Nullable BunyanFields fields,
+                         @NonNull BunyanMdc.Snapshot mdc,
+                         long timestamp,
+                         @Nullable String threadName,
+                         @Nullable Throwable t) {
+        logEvent(level, tag, message, fields, mdc, t);
+    }
+
+    // Whether the logEvent variant above needs the time and thread name, checked when the appender is added
+    protected boolean usesEventDetails() {
+        return false;
+    }
+
     String getTagPattern() {
         return mTagPattern;
     }
 
+    BunyanTagTemplate getTagTemplate() {
+        return mTagTemplate;
+    }
+
+    @Nullable
+    BunyanTagCache getTagCache() {
+        return mTagCache;
+    }
+
+    @Level
+    int getThreshold() {
+        return mThreshold;
+    }
+
+    void setThreshold(@Level int threshold) {
+        mThreshold = threshold;
+    }
+
     void setTagPattern(@NonNull String tagPattern) {
         mTagPattern = tagPattern;
+        mTagTemplate = BunyanTagTemplate.compile(tagPattern);
+        mTagCache = mTagTemplate.isStatic() ? new BunyanTagCache() : null;
     }
 }
@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.oriley.bunyan;
+
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import me.oriley.bunyan.Bunyan.Level;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Hands events off to a single worker thread through a bounded ring of preallocated slots.
+ *
+ * Slots are claimed with a CAS on the enqueue/dequeue positions and published through a per slot sequence number
+ * (based on http://www.1024cores.net/home/lock-free-algorithms/queues/bounded-mpmc-queue), so producers never lock
+ * and a steady state enqueue does not allocate. The worker is the only thread that dispatches events, so appenders are
+ * never called concurrently or out of order, but producers may also dequeue when discarding the oldest event, which is
+ * why the dequeue side is CAS based too.
+ */
+final class BunyanAsyncDispatcher implements Runnable {
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({OVERFLOW_BLOCK, OVERFLOW_DROP_OLDEST, OVERFLOW_DROP_BELOW_LEVEL})
+    @interface OverflowPolicy {
+    }
+
+    // Wait for the worker to make room
+    static final int OVERFLOW_BLOCK = 0;
+
+    // Discard the oldest buffered event to make room
+    static final int OVERFLOW_DROP_OLDEST = 1;
+
+    // Discard events below the overflow level, wait for room for anything else
+    static final int OVERFLOW_DROP_BELOW_LEVEL = 2;
+
+    private static final String TAG = BunyanAsyncDispatcher.class.getSimpleName();
+    private static final String THREAD_NAME = "Bunyan-Async";
+
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 16;
+    private static final int SPIN_TRIES = 64;
+
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long FLUSH_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long FLUSH_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    @NonNull
+    private final Slot[] mSlots;
+
+    private final int mMask;
+
+    @OverflowPolicy
+    private final int mOverflowPolicy;
+
+    @Level
+    private final int mOverflowLevel;
+
+    @NonNull
+    private final AtomicLong mEnqueuePosition = new AtomicLong();
+
+    @NonNull
+    private final AtomicLong mDequeuePosition = new AtomicLong();
+
+    @NonNull
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    @NonNull
+    private final Thread mWorker;
+
+    private long mReportedDroppedCount;
+
+    private volatile boolean mRunning = true;
+
+    private volatile boolean mWorkerWaiting;
+
+    // Position of the event the worker is dispatching, or Long.MAX_VALUE between events. See flush()
+    private volatile long mDispatchPosition = Long.MAX_VALUE;
+
+
+    BunyanAsyncDispatcher(int capacity, @OverflowPolicy int overflowPolicy, @Level int overflowLevel) {
+        int size = MIN_CAPACITY;
+        while (size < capacity && size < MAX_CAPACITY) {
+            size <<= 1;
+        }
+
+        mSlots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            mSlots[i] = new Slot(i);
+        }
+
+        mMask = size - 1;
+        mOverflowPolicy = overflowPolicy;
+        mOverflowLevel = overflowLevel;
+
+        mWorker = new Thread(this, THREAD_NAME);
+        mWorker.setDaemon(true);
+        mWorker.start();
+
+        installShutdownHook();
+    }
+
+
+    void enqueue(@Level int level,
+                 @NonNull String loggerName,
+                 @Nullable Class loggerClass,
+                 @NonNull String message,
+                 @Nullable BunyanFields fields,
+                 @Nullable Throwable t,
+                 long timestamp,
+                 @Nullable String threadName,
+                 boolean mainThread,
+                 @Nullable String methodName,
+                 int lineNumber,
+                 @NonNull BunyanMdc.Snapshot mdc) {
+        if (fields != null) {
+            // Done before a slot is claimed, as it calls out to toString() and the slot has to be published regardless
+            fields.snapshotObjects();
+        }
+
+        Thread thread = Thread.currentThread();
+        if (!mRunning) {
+            // Stopped by the shutdown hook, so nothing will dispatch from the buffer again. Anything still in it goes
+            // first, to keep the order, unless this is an appender on the worker, which is already draining it
+            if (thread != mWorker) {
+                flush();
+            }
+            Bunyan.dispatchEvent(level, loggerName, loggerClass, message, fields, t, timestamp, threadName, mainThread,
+                    methodName, lineNumber, mdc);
+            return;
+        }
+
+        int tries = 0;
+        while (!tryEnqueue(level, loggerName, loggerClass, message, fields, t, timestamp, threadName, mainThread,
+                methodName, lineNumber, mdc)) {
+            if (thread == mWorker || !mRunning) {
+                // Waiting on ourselves (an appender logging while the buffer is full) would never finish
+                Bunyan.dispatchEvent(level, loggerName, loggerClass, message, fields, t, timestamp, threadName,
+                        mainThread, methodName, lineNumber, mdc);
+                return;
+            }
+
+            if (mOverflowPolicy == OVERFLOW_DROP_OLDEST) {
+                if (dequeue(false)) {
+                    mDroppedCount.incrementAndGet();
+                }
+            } else if (mOverflowPolicy == OVERFLOW_DROP_BELOW_LEVEL && level < mOverflowLevel) {
+                mDroppedCount.incrementAndGet();
+                return;
+            } else {
+                LockSupport.unpark(mWorker);
+                if (++tries < SPIN_TRIES) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(this, FULL_PARK_NANOS);
+                }
+            }
+        }
+
+        if (!mRunning && thread != mWorker) {
+            // Stopped while we were enqueueing, possibly after the worker's last drain
+            flush();
+        } else if (mWorkerWaiting) {
+            LockSupport.unpark(mWorker);
+        }
+    }
+
+    /*
+     * Waits until everything buffered at the time of the call has been dispatched by the worker, or for at most
+     * FLUSH_TIMEOUT_NANOS, so a stuck appender or a slot that is never published can't hang the caller. This is called
+     * while the process is going down, from an uncaught exception handler for example. Only the worker (or the caller,
+     * if it is the worker or the worker has died) ever dispatches, so ordering is kept.
+     */
+    void flush() {
+        long target = mEnqueuePosition.get();
+        long deadline = System.nanoTime() + FLUSH_TIMEOUT_NANOS;
+
+        if (Thread.currentThread() == mWorker || !mWorker.isAlive()) {
+            while (mDequeuePosition.get() < target && System.nanoTime() < deadline) {
+                if (!dequeue(true)) {
+                    // A producer has claimed a slot but not published it yet
+                    Thread.yield();
+                }
+            }
+            return;
+        }
+
+        // The dispatch position is set before the worker claims a slot, so reading it second can't miss an event
+        while ((mDequeuePosition.get() < target || mDispatchPosition < target) && System.nanoTime() < deadline) {
+            LockSupport.unpark(mWorker);
+            LockSupport.parkNanos(this, FLUSH_PARK_NANOS);
+        }
+    }
+
+    // Lets the worker recheck how long it can stay idle for. An unpark before it parks isn't lost
+    void wakeUp() {
+        LockSupport.unpark(mWorker);
+    }
+
+    long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    @Override
+    public void run() {
+        while (mRunning) {
+            boolean drained = false;
+            while (dequeue(true)) {
+                drained = true;
+            }
+
+            reportDroppedEvents();
+
+            if (!drained) {
+                // Counts of collapsed repeats are reported from here too, so a burst that stops isn't left unreported
+                long summaryDelay = Bunyan.reportExpiredSummaries();
+
+                // Producers check for this after publishing, and unpark us, so there's no need to wake up on a timer
+                mWorkerWaiting = true;
+                if (isEmpty()) {
+                    if (summaryDelay < 0) {
+                        LockSupport.park(this);
+                    } else if (summaryDelay > 0) {
+                        LockSupport.parkNanos(this, summaryDelay);
+                    }
+                }
+                mWorkerWaiting = false;
+            }
+        }
+
+        // Stopped, so dispatch whatever made it into the buffer first. Later events are dispatched by their producers
+        while (dequeue(true)) {
+        }
+    }
+
+    private void reportDroppedEvents() {
+        long dropped = mDroppedCount.get();
+        if (dropped != mReportedDroppedCount) {
+            Log.w(TAG, "Buffer full, dropped " + (dropped - mReportedDroppedCount) + " events");
+            mReportedDroppedCount = dropped;
+        }
+    }
+
+    private boolean isEmpty() {
+        long position = mDequeuePosition.get();
+        return mSlots[(int) position & mMask].sequence != position + 1;
+    }
+
+    private boolean tryEnqueue(@Level int level,
+                               @NonNull String loggerName,
+                               @Nullable Class loggerClass,
+                               @NonNull String message,
+                               @Nullable BunyanFields fields,
+                               @Nullable Throwable t,
+                               long timestamp,
+                               @Nullable String threadName,
+                               boolean mainThread,
+                               @Nullable String methodName,
+                               int lineNumber,
+                               @NonNull BunyanMdc.Snapshot mdc) {
+        long position = mEnqueuePosition.get();
+        while (true) {
+            Slot slot = mSlots[(int) position & mMask];
+            long difference = slot.sequence - position;
+            if (difference == 0) {
+                if (mEnqueuePosition.compareAndSet(position, position + 1)) {
+                    try {
+                        slot.level = level;
+                        slot.loggerName = loggerName;
+                        slot.loggerClass = loggerClass;
+                        slot.message = message;
+                        slot.throwable = t;
+                        slot.timestamp = timestamp;
+                        slot.threadName = threadName;
+                        slot.mainThread = mainThread;
+                        slot.methodName = methodName;
+                        slot.lineNumber = lineNumber;
+                        slot.mdc = mdc;
+                        if (fields != null) {
+                            // Copied into the slot's own fields, so nothing is allocated unless it needs to grow
+                            slot.fields.copyFrom(fields);
+                            slot.hasFields = true;
+                        }
+                    } finally {
+                        // Publish, even if the copy failed, as the worker can't get past an unpublished slot
+                        slot.sequence = position + 1;
+                    }
+                    return true;
+                }
+                position = mEnqueuePosition.get();
+            } else if (difference < 0) {
+                // Full
+                return false;
+            } else {
+                position = mEnqueuePosition.get();
+            }
+        }
+    }
+
+    // Only the worker (or a flush() standing in for it) dispatches, producers discarding the oldest event don't
+    private boolean dequeue(boolean dispatch) {
+        // Restored afterwards, as an appender flushing from the worker dispatches from within another dispatch
+        long outerPosition = mDispatchPosition;
+        long position = mDequeuePosition.get();
+        while (true) {
+            Slot slot = mSlots[(int) position & mMask];
+            long difference = slot.sequence - (position + 1);
+            if (difference == 0) {
+                if (dispatch) {
+                    mDispatchPosition = Math.min(position, outerPosition);
+                }
+
+                if (mDequeuePosition.compareAndSet(position, position + 1)) {
+                    if (dispatch) {
+                        try {
+                            Bunyan.dispatchEvent(slot.level, slot.loggerName, slot.loggerClass, slot.message,
+                                    slot.hasFields ? slot.fields : null, slot.throwable, slot.timestamp,
+                                    slot.threadName, slot.mainThread, slot.methodName, slot.lineNumber, slot.mdc);
+                        } catch (Throwable t) {
+                            Log.e(TAG, "Error dispatching event", t);
+                        } finally {
+                            mDispatchPosition = outerPosition;
+                        }
+                    }
+
+                    slot.clear();
+
+                    // Release for the next lap
+                    slot.sequence = position + mSlots.length;
+                    return true;
+                }
+
+                if (dispatch) {
+                    mDispatchPosition = outerPosition;
+                }
+                position = mDequeuePosition.get();
+            } else if (difference < 0) {
+                // Empty
+                return false;
+            } else {
+                position = mDequeuePosition.get();
+            }
+        }
+    }
+
+    // Flushing on an uncaught exception is left to BunyanCrashHandler, which is opt in
+    private void installShutdownHook() {
+        Runtime.getRuntime().addShutdownHook(new Thread(THREAD_NAME + "-Shutdown") {
+            @Override
+            public void run() {
+                // Stopped first, so nothing enqueued from here on is left behind in the buffer
+                mRunning = false;
+                LockSupport.unpark(mWorker);
+                flush();
+            }
+        });
+    }
+
+    private static final class Slot {
+
+        volatile long sequence;
+
+        @Level
+        int level;
+
+        String loggerName;
+
+        Class loggerClass;
+
+        String message;
+
+        final BunyanFields fields = new BunyanFields();
+
+        boolean hasFields;
+
+        Throwable throwable;
+
+        long timestamp;
+
+        String threadName;
+
+        boolean mainThread;
+
+        String methodName;
+
+        int lineNumber;
+
+        // Immutable, so the reference is all that needs copying
+        BunyanMdc.Snapshot mdc;
+
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+
+
+        void clear() {
+            loggerName = null;
+            loggerClass = null;
+            message = null;
+            fields.clear();
+            hasFields = false;
+            throwable = null;
+            threadName = null;
+            methodName = null;
+            mdc = null;
+        }
+    }
+}
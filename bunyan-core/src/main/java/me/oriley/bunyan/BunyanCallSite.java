@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.oriley.bunyan;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/*
+ * Caller details recorded at build time. The plugin can insert a call to mark() directly before each logging call, so
+ * the calling method and line are known without capturing the stack.
+ *
+ * Marks are ignored unless an appender's tag pattern uses them, so they cost a single volatile read otherwise. A mark
+ * is placed after the call's arguments are evaluated, so the next logger call on the same thread is always the marked
+ * one. That call consumes the mark if it logs an event, and clears it otherwise (disabled, filtered and so on), so an
+ * unmarked call, such as one from a library the plugin doesn't transform, never picks up a stale frame.
+ *
+ * Only events without a mark fall back to capturing the stack. With the plugin recording call sites every logging call
+ * in the app is marked, so that's left to calls from libraries and other code the plugin doesn't transform.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class BunyanCallSite {
+
+    @NonNull
+    private static final ThreadLocal<Frame> sFrame = new ThreadLocal<Frame>() {
+        @Override
+        protected Frame initialValue() {
+            return new Frame();
+        }
+    };
+
+    // Odd while marks are required. Bumped on every change, so marks left over from an earlier period are ignored
+    private static volatile int sGeneration;
+
+
+    public static void mark(@NonNull String methodName, int lineNumber) {
+        int generation = sGeneration;
+        if ((generation & 1) != 0) {
+            Frame frame = sFrame.get();
+            frame.methodName = methodName;
+            frame.lineNumber = lineNumber;
+            frame.generation = generation;
+            frame.marked = true;
+        }
+    }
+
+    static synchronized void setRequired(boolean required) {
+        if (required != ((sGeneration & 1) != 0)) {
+            sGeneration++;
+        }
+    }
+
+    // The frame marked for the current event, if any. Only valid until the next mark on this thread
+    @Nullable
+    static Frame takeFrame() {
+        Frame frame = sFrame.get();
+        if (!frame.marked) {
+            return null;
+        }
+
+        frame.marked = false;
+        return frame.generation == sGeneration ? frame : null;
+    }
+
+    // Drops the current thread's mark, for a logger call that won't log an event
+    static void clear() {
+        if ((sGeneration & 1) != 0) {
+            sFrame.get().marked = false;
+        }
+    }
+
+    static final class Frame {
+
+        String methodName;
+
+        int lineNumber;
+
+        int generation;
+
+        boolean marked;
+    }
+}
@@ -24,8 +24,13 @@ import me.oriley.bunyan.Bunyan.Level;
 @SuppressWarnings("unused")
 public class BunyanCoreLogger {
 
-    @Level
-    private final int mThreshold;
+    // See Bunyan.getLevelState. Not volatile, as a stale value only means recomputing it
+    private int mLevelState;
+
+    private final int mPackageThreshold;
+
+    // See BunyanDuplicateFilter, 0 if repeats aren't collapsed
+    private final long mDuplicateWindowNanos;
 
     @NonNull
     private final String mName;
@@ -37,17 +42,62 @@ public class BunyanCoreLogger {
     // Specifying a name will skip any tag layout preferences
     public BunyanCoreLogger(@NonNull String name) {
         mName = name;
-        mThreshold = Bunyan.getThreshold(name);
         mClass = null;
+        mPackageThreshold = Bunyan.getPackageThreshold(name);
+        mLevelState = Bunyan.getLevelState(name, mPackageThreshold);
+        mDuplicateWindowNanos = Bunyan.getDuplicateWindowNanos(name);
     }
 
     public BunyanCoreLogger(@NonNull Class c) {
         mClass = c;
         String className = c.getName();
         mName = className;
-        mThreshold = Bunyan.getThreshold(className);
+        mPackageThreshold = Bunyan.getPackageThreshold(className);
+        mLevelState = Bunyan.getLevelState(className, mPackageThreshold);
+        mDuplicateWindowNanos = Bunyan.getDuplicateWindowNanos(className);
+    }
+
+
+    // region FIELDS
+
+    // Start an event with fields, see BunyanEventBuilder. Nothing is recorded for levels that aren't enabled
+
+    @NonNull
+    public BunyanEventBuilder atTrace() {
+        return at(Log.VERBOSE);
+    }
+
+    @NonNull
+    public BunyanEventBuilder atDebug() {
+        return at(Log.DEBUG);
+    }
+
+    @NonNull
+    public BunyanEventBuilder atInfo() {
+        return at(Log.INFO);
+    }
+
+    @NonNull
+    public BunyanEventBuilder atWarn() {
+        return at(Log.WARN);
+    }
+
+    @NonNull
+    public BunyanEventBuilder atError() {
+        return at(Log.ERROR);
+    }
+
+    @NonNull
+    public BunyanEventBuilder atWtf() {
+        return at(Log.ASSERT);
+    }
+
+    @NonNull
+    public BunyanEventBuilder at(@Level int level) {
+        return isLoggable(level) ? BunyanEventBuilder.obtain(this, level) : BunyanEventBuilder.DISABLED;
     }
 
+    // endregion FIELDS
 
     // region TRACE
 
@@ -56,9 +106,49 @@ public class BunyanCoreLogger {
     }
 
     public void trace(String format, Object arg) {
+        log(Log.VERBOSE, format, 1, arg, null, null);
+    }
+
+    public void trace(String format, Object arg1, Object arg2) {
+        log(Log.VERBOSE, format, 2, arg1, arg2, null);
+    }
+
+    public void trace(String format, Object arg1, Object arg2, Object arg3) {
+        log(Log.VERBOSE, format, 3, arg1, arg2, arg3);
+    }
+
+    public void trace(String format, boolean arg) {
         log(Log.VERBOSE, format, arg);
     }
 
+    public void trace(String format, char arg) {
+        log(Log.VERBOSE, format, arg);
+    }
+
+    public void trace(String format, int arg) {
+        log(Log.VERBOSE, format, (long) arg);
+    }
+
+    public void trace(String format, long arg) {
+        log(Log.VERBOSE, format, arg);
+    }
+
+    public void trace(String format, float arg) {
+        log(Log.VERBOSE, format, arg);
+    }
+
+    public void trace(String format, double arg) {
+        log(Log.VERBOSE, format, arg);
+    }
+
+    public void trace(String format, int arg1, int arg2) {
+        log(Log.VERBOSE, format, (long) arg1, (long) arg2);
+    }
+
+    public void trace(String format, long arg1, long arg2) {
+        log(Log.VERBOSE, format, arg1, arg2);
+    }
+
     public void trace(String format, Object... argArray) {
         log(Log.VERBOSE, format, argArray);
     }
@@ -76,9 +166,49 @@ public class BunyanCoreLogger {
     }
 
     public void debug(String format, Object arg) {
+        log(Log.DEBUG, format, 1, arg, null, null);
+    }
+
+    public void debug(String format, Object arg1, Object arg2) {
+        log(Log.DEBUG, format, 2, arg1, arg2, null);
+    }
+
+    public void debug(String format, Object arg1, Object arg2, Object arg3) {
+        log(Log.DEBUG, format, 3, arg1, arg2, arg3);
+    }
+
+    public void debug(String format, boolean arg) {
+        log(Log.DEBUG, format, arg);
+    }
+
+    public void debug(String format, char arg) {
+        log(Log.DEBUG, format, arg);
+    }
+
+    public void debug(String format, int arg) {
+        log(Log.DEBUG, format, (long) arg);
+    }
+
+    public void debug(String format, long arg) {
         log(Log.DEBUG, format, arg);
     }
 
+    public void debug(String format, float arg) {
+        log(Log.DEBUG, format, arg);
+    }
+
+    public void debug(String format, double arg) {
+        log(Log.DEBUG, format, arg);
+    }
+
+    public void debug(String format, int arg1, int arg2) {
+        log(Log.DEBUG, format, (long) arg1, (long) arg2);
+    }
+
+    public void debug(String format, long arg1, long arg2) {
+        log(Log.DEBUG, format, arg1, arg2);
+    }
+
     public void debug(String format, Object... argArray) {
         log(Log.DEBUG, format, argArray);
     }
@@ -96,9 +226,49 @@ public class BunyanCoreLogger {
     }
 
     public void info(String format, Object arg) {
+        log(Log.INFO, format, 1, arg, null, null);
+    }
+
+    public void info(String format, Object arg1, Object arg2) {
+        log(Log.INFO, format, 2, arg1, arg2, null);
+    }
+
+    public void info(String format, Object arg1, Object arg2, Object arg3) {
+        log(Log.INFO, format, 3, arg1, arg2, arg3);
+    }
+
+    public void info(String format, boolean arg) {
         log(Log.INFO, format, arg);
     }
 
+    public void info(String format, char arg) {
+        log(Log.INFO, format, arg);
+    }
+
+    public void info(String format, int arg) {
+        log(Log.INFO, format, (long) arg);
+    }
+
+    public void info(String format, long arg) {
+        log(Log.INFO, format, arg);
+    }
+
+    public void info(String format, float arg) {
+        log(Log.INFO, format, arg);
+    }
+
+    public void info(String format, double arg) {
+        log(Log.INFO, format, arg);
+    }
+
+    public void info(String format, int arg1, int arg2) {
+        log(Log.INFO, format, (long) arg1, (long) arg2);
+    }
+
+    public void info(String format, long arg1, long arg2) {
+        log(Log.INFO, format, arg1, arg2);
+    }
+
     public void info(String format, Object... argArray) {
         log(Log.INFO, format, argArray);
     }
@@ -116,9 +286,49 @@ public class BunyanCoreLogger {
     }
 
     public void warn(String format, Object arg) {
+        log(Log.WARN, format, 1, arg, null, null);
+    }
+
+    public void warn(String format, Object arg1, Object arg2) {
+        log(Log.WARN, format, 2, arg1, arg2, null);
+    }
+
+    public void warn(String format, Object arg1, Object arg2, Object arg3) {
+        log(Log.WARN, format, 3, arg1, arg2, arg3);
+    }
+
+    public void warn(String format, boolean arg) {
+        log(Log.WARN, format, arg);
+    }
+
+    public void warn(String format, char arg) {
+        log(Log.WARN, format, arg);
+    }
+
+    public void warn(String format, int arg) {
+        log(Log.WARN, format, (long) arg);
+    }
+
+    public void warn(String format, long arg) {
+        log(Log.WARN, format, arg);
+    }
+
+    public void warn(String format, float arg) {
         log(Log.WARN, format, arg);
     }
 
+    public void warn(String format, double arg) {
+        log(Log.WARN, format, arg);
+    }
+
+    public void warn(String format, int arg1, int arg2) {
+        log(Log.WARN, format, (long) arg1, (long) arg2);
+    }
+
+    public void warn(String format, long arg1, long arg2) {
+        log(Log.WARN, format, arg1, arg2);
+    }
+
     public void warn(String format, Object... argArray) {
         log(Log.WARN, format, argArray);
     }
@@ -136,9 +346,49 @@ public class BunyanCoreLogger {
     }
 
     public void error(String format, Object arg) {
+        log(Log.ERROR, format, 1, arg, null, null);
+    }
+
+    public void error(String format, Object arg1, Object arg2) {
+        log(Log.ERROR, format, 2, arg1, arg2, null);
+    }
+
+    public void error(String format, Object arg1, Object arg2, Object arg3) {
+        log(Log.ERROR, format, 3, arg1, arg2, arg3);
+    }
+
+    public void error(String format, boolean arg) {
         log(Log.ERROR, format, arg);
     }
 
+    public void error(String format, char arg) {
+        log(Log.ERROR, format, arg);
+    }
+
+    public void error(String format, int arg) {
+        log(Log.ERROR, format, (long) arg);
+    }
+
+    public void error(String format, long arg) {
+        log(Log.ERROR, format, arg);
+    }
+
+    public void error(String format, float arg) {
+        log(Log.ERROR, format, arg);
+    }
+
+    public void error(String format, double arg) {
+        log(Log.ERROR, format, arg);
+    }
+
+    public void error(String format, int arg1, int arg2) {
+        log(Log.ERROR, format, (long) arg1, (long) arg2);
+    }
+
+    public void error(String format, long arg1, long arg2) {
+        log(Log.ERROR, format, arg1, arg2);
+    }
+
     public void error(String format, Object... argArray) {
         log(Log.ERROR, format, argArray);
     }
@@ -156,9 +406,49 @@ public class BunyanCoreLogger {
     }
 
     public void wtf(String format, Object arg) {
+        log(Log.ASSERT, format, 1, arg, null, null);
+    }
+
+    public void wtf(String format, Object arg1, Object arg2) {
+        log(Log.ASSERT, format, 2, arg1, arg2, null);
+    }
+
+    public void wtf(String format, Object arg1, Object arg2, Object arg3) {
+        log(Log.ASSERT, format, 3, arg1, arg2, arg3);
+    }
+
+    public void wtf(String format, boolean arg) {
         log(Log.ASSERT, format, arg);
     }
 
+    public void wtf(String format, char arg) {
+        log(Log.ASSERT, format, arg);
+    }
+
+    public void wtf(String format, int arg) {
+        log(Log.ASSERT, format, (long) arg);
+    }
+
+    public void wtf(String format, long arg) {
+        log(Log.ASSERT, format, arg);
+    }
+
+    public void wtf(String format, float arg) {
+        log(Log.ASSERT, format, arg);
+    }
+
+    public void wtf(String format, double arg) {
+        log(Log.ASSERT, format, arg);
+    }
+
+    public void wtf(String format, int arg1, int arg2) {
+        log(Log.ASSERT, format, (long) arg1, (long) arg2);
+    }
+
+    public void wtf(String format, long arg1, long arg2) {
+        log(Log.ASSERT, format, arg1, arg2);
+    }
+
     public void wtf(String format, Object... argArray) {
         log(Log.ASSERT, format, argArray);
     }
@@ -169,20 +459,110 @@ public class BunyanCoreLogger {
 
     // endregion ASSERT
 
+    // Messages are only formatted if an appender asks for them, see BunyanMessage
+
     private void log(@Level int level, @Nullable String format, @Nullable Object... argArray) {
-        if (isLoggable(level)) {
-            FormattingPair ft = MessageFormatter.formatArray(format, argArray);
-            Bunyan.logEvent(level, mName, mClass, ft.message, ft.throwable);
+        if (shouldLog(level, format)) {
+            int argCount = argArray != null ? argArray.length : 0;
+            Throwable t = argCount > 0 ? MessageFormatter.getThrowable(argArray[argCount - 1]) : null;
+            if (t != null) {
+                argCount--;
+            }
+            log(level, BunyanMessage.obtain().setArguments(format, argArray, argCount), t);
+        }
+    }
+
+    private void log(@Level int level,
+                     @Nullable String format,
+                     int argCount,
+                     @Nullable Object arg1,
+                     @Nullable Object arg2,
+                     @Nullable Object arg3) {
+        if (shouldLog(level, format)) {
+            Throwable t = MessageFormatter.getThrowable(argCount == 1 ? arg1 : argCount == 2 ? arg2 : arg3);
+            if (t != null) {
+                argCount--;
+            }
+            log(level, BunyanMessage.obtain().setArguments(format, argCount, arg1, arg2, arg3), t);
+        }
+    }
+
+    // Primitive arguments are kept as is, avoiding boxing
+
+    private void log(@Level int level, @Nullable String format, boolean arg) {
+        if (shouldLog(level, format)) {
+            log(level, BunyanMessage.obtain().setArgument(format, arg), null);
+        }
+    }
+
+    private void log(@Level int level, @Nullable String format, char arg) {
+        if (shouldLog(level, format)) {
+            log(level, BunyanMessage.obtain().setArgument(format, arg), null);
+        }
+    }
+
+    private void log(@Level int level, @Nullable String format, long arg) {
+        if (shouldLog(level, format)) {
+            log(level, BunyanMessage.obtain().setArgument(format, arg), null);
+        }
+    }
+
+    private void log(@Level int level, @Nullable String format, float arg) {
+        if (shouldLog(level, format)) {
+            log(level, BunyanMessage.obtain().setArgument(format, arg), null);
+        }
+    }
+
+    private void log(@Level int level, @Nullable String format, double arg) {
+        if (shouldLog(level, format)) {
+            log(level, BunyanMessage.obtain().setArgument(format, arg), null);
+        }
+    }
+
+    private void log(@Level int level, @Nullable String format, long arg1, long arg2) {
+        if (shouldLog(level, format)) {
+            log(level, BunyanMessage.obtain().setArguments(format, arg1, arg2), null);
         }
     }
 
     private void log(@Level int level, @Nullable String message, @Nullable Throwable throwable) {
-        if (isLoggable(level)) {
-            Bunyan.logEvent(level, mName, mClass, message, throwable);
+        if (shouldLog(level, message)) {
+            log(level, BunyanMessage.obtain().setLiteral(message), throwable);
+        }
+    }
+
+    private void log(@Level int level, @NonNull BunyanMessage message, @Nullable Throwable throwable) {
+        log(level, message, null, throwable);
+    }
+
+    // Also called by BunyanEventBuilder, once the level has been checked
+    void log(@Level int level,
+             @NonNull BunyanMessage message,
+             @Nullable BunyanFields fields,
+             @Nullable Throwable throwable) {
+        try {
+            Bunyan.logEvent(level, mName, mClass, mDuplicateWindowNanos, message, fields, throwable);
+        } finally {
+            message.recycle();
+        }
+    }
+
+    // Clears the call site mark for calls that won't reach Bunyan.logEvent, see BunyanCallSite
+    private boolean shouldLog(@Level int level, @Nullable String format) {
+        if (isLoggable(level) && format != null) {
+            return true;
         }
+
+        BunyanCallSite.clear();
+        return false;
     }
 
     private boolean isLoggable(@Level int level) {
-        return level >= mThreshold;
+        int levelState = mLevelState;
+        if (levelState >>> Bunyan.LEVEL_STATE_SHIFT != Bunyan.getGeneration()) {
+            levelState = Bunyan.getLevelState(mName, mPackageThreshold);
+            mLevelState = levelState;
+        }
+        return level >= 0 && level < Bunyan.LEVEL_STATE_SHIFT && (levelState & (1 << level)) != 0;
     }
 }
\ No newline at end of file
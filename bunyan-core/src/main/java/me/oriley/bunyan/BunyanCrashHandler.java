@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.oriley.bunyan;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+ * The one default uncaught exception handler Bunyan installs, and only once install() is called. On an uncaught
+ * exception it flushes Bunyan (see Bunyan.flush()), then calls each listener added with addListener(), most recently
+ * added first, then the handler that was installed before it. Components that hold events in memory, such as
+ * BunyanRingBufferAppender or a buffered Crashlytics appender, are listeners so they can write them out before the
+ * process goes down. Add a component after anything it passes events on to, so it runs first.
+ *
+ * Installing again does nothing, and uninstall() restores the previous handler if nothing has replaced this one since.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class BunyanCrashHandler implements Thread.UncaughtExceptionHandler {
+
+    public interface Listener {
+
+        // Called on the crashing thread, before the previous handler
+        void onUncaughtException(@NonNull Thread thread, @NonNull Throwable throwable);
+    }
+
+    private static final String TAG = BunyanCrashHandler.class.getSimpleName();
+
+    @NonNull
+    private static final List<Listener> sListeners = new CopyOnWriteArrayList<>();
+
+    // Guarded by the class
+    @Nullable
+    private static BunyanCrashHandler sInstalled;
+
+    @Nullable
+    private final Thread.UncaughtExceptionHandler mPrevious;
+
+
+    private BunyanCrashHandler(@Nullable Thread.UncaughtExceptionHandler previous) {
+        mPrevious = previous;
+    }
+
+
+    public static synchronized void install() {
+        if (sInstalled == null) {
+            sInstalled = new BunyanCrashHandler(Thread.getDefaultUncaughtExceptionHandler());
+            Thread.setDefaultUncaughtExceptionHandler(sInstalled);
+        }
+    }
+
+    public static synchronized void uninstall() {
+        if (sInstalled != null && Thread.getDefaultUncaughtExceptionHandler() == sInstalled) {
+            Thread.setDefaultUncaughtExceptionHandler(sInstalled.mPrevious);
+        }
+        sInstalled = null;
+    }
+
+    public static synchronized boolean isInstalled() {
+        return sInstalled != null;
+    }
+
+    // Adding a listener that is already added does nothing
+    public static synchronized void addListener(@NonNull Listener listener) {
+        if (!sListeners.contains(listener)) {
+            sListeners.add(0, listener);
+        }
+    }
+
+    public static boolean removeListener(@NonNull Listener listener) {
+        return sListeners.remove(listener);
+    }
+
+    @Override
+    public void uncaughtException(@NonNull Thread thread, @NonNull Throwable throwable) {
+        try {
+            Bunyan.flush();
+        } catch (Throwable t) {
+            Log.e(TAG, "Error flushing Bunyan", t);
+        }
+
+        for (Listener listener : sListeners) {
+            try {
+                listener.onUncaughtException(thread, throwable);
+            } catch (Throwable t) {
+                Log.e(TAG, "Error handling uncaught exception", t);
+            }
+        }
+
+        if (mPrevious != null) {
+            mPrevious.uncaughtException(thread, throwable);
+        }
+    }
+}
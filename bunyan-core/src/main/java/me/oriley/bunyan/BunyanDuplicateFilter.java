@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.oriley.bunyan;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import me.oriley.bunyan.Bunyan.Level;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Collapses repeats of the same event, by logger, level and message pattern, for loggers with a duplicate window. The
+ * first event is let through, and repeats are counted until the window since it has passed. The count is then
+ * reported as a summary event, ahead of the next repeat, which starts a new window.
+ *
+ * Events are tracked in a fixed size table indexed by hash, so memory use never grows. Events that share a slot evict
+ * each other, which only means repeats may be let through early. The earliest time a count falls due is kept, so
+ * bursts that simply stop are reported by reportExpired(), which Bunyan calls on the next event from any logger and
+ * from the async worker, without either having to look at the table until then. flush() reports everything outstanding.
+ *
+ * Summaries are queued rather than logged while a slot is locked, and passed on by Bunyan with pollSummary().
+ */
+final class BunyanDuplicateFilter {
+
+    private static final int TABLE_SIZE = 128;
+    private static final int MASK = TABLE_SIZE - 1;
+
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    @NonNull
+    private final Entry[] mEntries = new Entry[TABLE_SIZE];
+
+    @NonNull
+    private final ConcurrentLinkedQueue<Summary> mSummaries = new ConcurrentLinkedQueue<>();
+
+    // Earliest end of a window with repeats counted, or NO_DEADLINE. Only ever early, never late
+    @NonNull
+    private final AtomicLong mDeadline = new AtomicLong(NO_DEADLINE);
+
+
+    BunyanDuplicateFilter() {
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            mEntries[i] = new Entry();
+        }
+    }
+
+
+    // Whether the event should be logged, false if it repeats one logged within windowNanos
+    boolean accept(@Level int level,
+                   @NonNull String loggerName,
+                   @Nullable Class loggerClass,
+                   @NonNull String pattern,
+                   long windowNanos,
+                   long now) {
+        int hash = (loggerName.hashCode() * 31 + pattern.hashCode()) * 31 + level;
+        Entry entry = mEntries[(hash ^ hash >>> 16) & MASK];
+        synchronized (entry) {
+            if (entry.matches(level, loggerName, pattern)) {
+                if (now - entry.startNanos < windowNanos) {
+                    if (entry.count++ == 0) {
+                        lowerDeadline(entry.startNanos + entry.windowNanos);
+                    }
+                    return false;
+                }
+                report(entry);
+            } else if (entry.pattern != null) {
+                report(entry);
+            }
+
+            entry.level = level;
+            entry.loggerName = loggerName;
+            entry.loggerClass = loggerClass;
+            entry.pattern = pattern;
+            entry.startNanos = now;
+            entry.windowNanos = windowNanos;
+            entry.count = 0;
+            return true;
+        }
+    }
+
+    // Queues summaries for every outstanding count
+    void flush() {
+        mDeadline.set(NO_DEADLINE);
+        for (Entry entry : mEntries) {
+            synchronized (entry) {
+                report(entry);
+            }
+        }
+    }
+
+    // Earliest System.nanoTime() a count falls due, or NO_DEADLINE
+    long getDeadline() {
+        return mDeadline.get();
+    }
+
+    // Nanoseconds until the next count falls due, or -1 if there's none
+    long getDelay(long now) {
+        long deadline = mDeadline.get();
+        return deadline == NO_DEADLINE ? -1 : Math.max(0, deadline - now);
+    }
+
+    // Queues summaries for counts whose window has passed, if any have
+    void reportExpired(long now) {
+        long deadline = mDeadline.get();
+        if (deadline == NO_DEADLINE || now - deadline < 0 || !mDeadline.compareAndSet(deadline, NO_DEADLINE)) {
+            return;
+        }
+
+        // Anything counted from here on lowers the deadline itself, so only what's left unreported needs adding back
+        for (Entry entry : mEntries) {
+            if (entry.count > 0) {
+                synchronized (entry) {
+                    if (entry.count > 0) {
+                        long end = entry.startNanos + entry.windowNanos;
+                        if (now - end >= 0) {
+                            report(entry);
+                        } else {
+                            lowerDeadline(end);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    boolean hasSummaries() {
+        return !mSummaries.isEmpty();
+    }
+
+    @Nullable
+    Summary pollSummary() {
+        return mSummaries.poll();
+    }
+
+    private void lowerDeadline(long deadline) {
+        while (true) {
+            long current = mDeadline.get();
+            if (deadline >= current || mDeadline.compareAndSet(current, deadline)) {
+                return;
+            }
+        }
+    }
+
+    // Called with the entry locked
+    private void report(@NonNull Entry entry) {
+        if (entry.count > 0) {
+            mSummaries.add(new Summary(entry.level, entry.loggerName, entry.loggerClass,
+                    "Repeated " + entry.count + " more times: " + entry.pattern));
+            entry.count = 0;
+        }
+    }
+
+    private static final class Entry {
+
+        int level;
+
+        String loggerName;
+
+        Class loggerClass;
+
+        String pattern;
+
+        long startNanos;
+
+        long windowNanos;
+
+        // Repeats since startNanos. Read without the lock by reportExpired(), which checks again once locked
+        volatile int count;
+
+        boolean matches(@Level int level, @NonNull String loggerName, @NonNull String pattern) {
+            return this.level == level
+                    && (this.pattern == pattern || pattern.equals(this.pattern))
+                    && (this.loggerName == loggerName || loggerName.equals(this.loggerName));
+        }
+    }
+
+    static final class Summary {
+
+        @Level
+        final int level;
+
+        @NonNull
+        final String loggerName;
+
+        @Nullable
+        final Class loggerClass;
+
+        @NonNull
+        final String message;
+
+        Summary(@Level int level, @NonNull String loggerName, @Nullable Class loggerClass, @NonNull String message) {
+            this.level = level;
+            this.loggerName = loggerName;
+            this.loggerClass = loggerClass;
+            this.message = message;
+        }
+    }
+}
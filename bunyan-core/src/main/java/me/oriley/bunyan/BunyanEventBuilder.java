@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.oriley.bunyan;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import me.oriley.bunyan.Bunyan.Level;
+
+/*
+ * Collects fields for a single event, obtained from BunyanCoreLogger.atInfo() and friends:
+ *
+ *     logger.atInfo().with("user", id).with("elapsed", millis).log("Loaded profile");
+ *
+ * Builders are reused per thread and recycled by log(), so one must not be kept past the log() call. A chain that is
+ * never logged, or a second chain started while building the first, gets a new builder that then takes over as the
+ * thread's one, so neither leaves the thread allocating from then on. Loggers return a shared builder that ignores
+ * everything for levels that aren't enabled, so a disabled event costs no more than the level check.
+ *
+ * As with the logger methods, a Throwable passed as the last format argument is logged as the event's throwable.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class BunyanEventBuilder {
+
+    @NonNull
+    static final BunyanEventBuilder DISABLED = new BunyanEventBuilder();
+
+    @NonNull
+    private static final ThreadLocal<BunyanEventBuilder> sBuilder = new ThreadLocal<BunyanEventBuilder>() {
+        @Override
+        protected BunyanEventBuilder initialValue() {
+            return new BunyanEventBuilder();
+        }
+    };
+
+    @NonNull
+    private final BunyanFields mFields = new BunyanFields();
+
+    // Only set between obtain() and log(), never for DISABLED
+    @Nullable
+    private BunyanCoreLogger mLogger;
+
+    @Level
+    private int mLevel;
+
+    @Nullable
+    private Throwable mThrowable;
+
+
+    private BunyanEventBuilder() {
+    }
+
+
+    @NonNull
+    static BunyanEventBuilder obtain(@NonNull BunyanCoreLogger logger, @Level int level) {
+        BunyanEventBuilder builder = sBuilder.get();
+        if (builder.mLogger != null) {
+            // Abandoned without log(), or still being built or logged further up the stack (i.e. by a field's
+            // toString() or an appender). Leave it be, and replace it for this thread
+            builder = new BunyanEventBuilder();
+            sBuilder.set(builder);
+        }
+
+        builder.mLogger = logger;
+        builder.mLevel = level;
+        return builder;
+    }
+
+    @NonNull
+    public BunyanEventBuilder with(@NonNull String key, boolean value) {
+        if (mLogger != null) {
+            mFields.addBoolean(key, value);
+        }
+        return this;
+    }
+
+    @NonNull
+    public BunyanEventBuilder with(@NonNull String key, int value) {
+        if (mLogger != null) {
+            mFields.addLong(key, value);
+        }
+        return this;
+    }
+
+    @NonNull
+    public BunyanEventBuilder with(@NonNull String key, long value) {
+        if (mLogger != null) {
+            mFields.addLong(key, value);
+        }
+        return this;
+    }
+
+    @NonNull
+    public BunyanEventBuilder with(@NonNull String key, float value) {
+        if (mLogger != null) {
+            mFields.addFloat(key, value);
+        }
+        return this;
+    }
+
+    @NonNull
+    public BunyanEventBuilder with(@NonNull String key, double value) {
+        if (mLogger != null) {
+            mFields.addDouble(key, value);
+        }
+        return this;
+    }
+
+    @NonNull
+    public BunyanEventBuilder with(@NonNull String key, @Nullable String value) {
+        if (mLogger != null) {
+            mFields.addString(key, value);
+        }
+        return this;
+    }
+
+    // Only converted to a string if an appender asks for it
+    @NonNull
+    public BunyanEventBuilder with(@NonNull String key, @Nullable Object value) {
+        if (mLogger != null) {
+            mFields.addObject(key, value);
+        }
+        return this;
+    }
+
+    @NonNull
+    public BunyanEventBuilder withThrowable(@Nullable Throwable t) {
+        if (mLogger != null) {
+            mThrowable = t;
+        }
+        return this;
+    }
+
+    public void log(@Nullable String msg) {
+        BunyanCoreLogger logger = mLogger;
+        if (logger == null || msg == null) {
+            skip();
+            return;
+        }
+
+        try {
+            logger.log(mLevel, BunyanMessage.obtain().setLiteral(msg), mFields, mThrowable);
+        } finally {
+            recycle();
+        }
+    }
+
+    public void log(@Nullable String format, @Nullable Object arg) {
+        log(format, 1, arg, null);
+    }
+
+    public void log(@Nullable String format, @Nullable Object arg1, @Nullable Object arg2) {
+        log(format, 2, arg1, arg2);
+    }
+
+    public void log(@Nullable String format, @Nullable Object... argArray) {
+        BunyanCoreLogger logger = mLogger;
+        if (logger == null || format == null) {
+            skip();
+            return;
+        }
+
+        try {
+            int argCount = argArray != null ? argArray.length : 0;
+            Throwable t = argCount > 0 ? MessageFormatter.getThrowable(argArray[argCount - 1]) : null;
+            if (t != null) {
+                argCount--;
+            }
+            logger.log(mLevel, BunyanMessage.obtain().setArguments(format, argArray, argCount), mFields,
+                    t != null ? t : mThrowable);
+        } finally {
+            recycle();
+        }
+    }
+
+    private void log(@Nullable String format, int argCount, @Nullable Object arg1, @Nullable Object arg2) {
+        BunyanCoreLogger logger = mLogger;
+        if (logger == null || format == null) {
+            skip();
+            return;
+        }
+
+        try {
+            Throwable t = MessageFormatter.getThrowable(argCount == 1 ? arg1 : arg2);
+            if (t != null) {
+                argCount--;
+            }
+            logger.log(mLevel, BunyanMessage.obtain().setArguments(format, argCount, arg1, arg2, null), mFields,
+                    t != null ? t : mThrowable);
+        } finally {
+            recycle();
+        }
+    }
+
+    // Ends a chain that won't reach Bunyan.logEvent, clearing its call site mark, see BunyanCallSite
+    private void skip() {
+        BunyanCallSite.clear();
+        if (mLogger != null) {
+            recycle();
+        }
+    }
+
+    private void recycle() {
+        mFields.clear();
+        mLogger = null;
+        mThrowable = null;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.oriley.bunyan;
+
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/*
+ * Key/value fields attached to an event through BunyanEventBuilder. Values are kept as they were given, primitives
+ * in unboxed arrays, so appenders can write them out by type without going through a string first.
+ *
+ * Like BunyanMessage, instances are reused, so fields are only valid for the duration of the logEvent call they were
+ * passed to.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class BunyanFields {
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({TYPE_BOOLEAN, TYPE_LONG, TYPE_DOUBLE, TYPE_STRING, TYPE_OBJECT, TYPE_FLOAT})
+    public @interface Type {
+    }
+
+    public static final int TYPE_BOOLEAN = 0;
+    public static final int TYPE_LONG = 1;
+    public static final int TYPE_DOUBLE = 2;
+    public static final int TYPE_STRING = 3;
+    public static final int TYPE_OBJECT = 4;
+    public static final int TYPE_FLOAT = 5;
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    @NonNull
+    private String[] mKeys = new String[INITIAL_CAPACITY];
+
+    @NonNull
+    private int[] mTypes = new int[INITIAL_CAPACITY];
+
+    // Booleans and longs share mLongs, and floats are kept in mDoubles, which holds them exactly
+    @NonNull
+    private long[] mLongs = new long[INITIAL_CAPACITY];
+
+    @NonNull
+    private double[] mDoubles = new double[INITIAL_CAPACITY];
+
+    @NonNull
+    private Object[] mObjects = new Object[INITIAL_CAPACITY];
+
+    private int mSize;
+
+    // Message and fields as text, see getString()
+    @Nullable
+    private String mString;
+
+
+    BunyanFields() {
+    }
+
+
+    public int size() {
+        return mSize;
+    }
+
+    @NonNull
+    public String getKey(int index) {
+        return mKeys[checkIndex(index)];
+    }
+
+    @Type
+    public int getType(int index) {
+        return mTypes[checkIndex(index)];
+    }
+
+    public boolean getBoolean(int index) {
+        return mLongs[checkIndex(index)] != 0;
+    }
+
+    public long getLong(int index) {
+        return mLongs[checkIndex(index)];
+    }
+
+    // Also works for TYPE_FLOAT, although the widened value prints with more digits than the float would
+    public double getDouble(int index) {
+        return mDoubles[checkIndex(index)];
+    }
+
+    public float getFloat(int index) {
+        return (float) mDoubles[checkIndex(index)];
+    }
+
+    // Only set for TYPE_STRING and TYPE_OBJECT, use getValue() to box any type
+    @Nullable
+    public Object getObject(int index) {
+        return mObjects[checkIndex(index)];
+    }
+
+    @Nullable
+    public Object getValue(int index) {
+        switch (getType(index)) {
+            case TYPE_BOOLEAN:
+                return mLongs[index] != 0;
+            case TYPE_LONG:
+                return mLongs[index];
+            case TYPE_DOUBLE:
+                return mDoubles[index];
+            case TYPE_FLOAT:
+                return (float) mDoubles[index];
+            default:
+                return mObjects[index];
+        }
+    }
+
+    // Appends the value as text, without boxing primitives
+    public void appendValue(@NonNull StringBuilder builder, int index) {
+        switch (getType(index)) {
+            case TYPE_BOOLEAN:
+                builder.append(mLongs[index] != 0);
+                break;
+            case TYPE_LONG:
+                builder.append(mLongs[index]);
+                break;
+            case TYPE_DOUBLE:
+                builder.append(mDoubles[index]);
+                break;
+            case TYPE_FLOAT:
+                builder.append((float) mDoubles[index]);
+                break;
+            default:
+                Object value = mObjects[index];
+                builder.append(value != null ? MessageFormatter.safeToString(value) : "null");
+                break;
+        }
+    }
+
+    /*
+     * The message followed by each field as key=value, for appenders that only deal in text. The result is kept, so
+     * every appender shares the same one.
+     */
+    @NonNull
+    public String getString(@NonNull BunyanMessage message) {
+        if (mString == null) {
+            String text = message.getString();
+            StringBuilder builder = new StringBuilder(text.length() + mSize * 16).append(text);
+            for (int i = 0; i < mSize; i++) {
+                builder.append(' ').append(mKeys[i]).append('=');
+                appendValue(builder, i);
+            }
+            mString = builder.toString();
+        }
+        return mString;
+    }
+
+    void addBoolean(@NonNull String key, boolean value) {
+        int index = add(key, TYPE_BOOLEAN);
+        mLongs[index] = value ? 1 : 0;
+    }
+
+    void addLong(@NonNull String key, long value) {
+        int index = add(key, TYPE_LONG);
+        mLongs[index] = value;
+    }
+
+    void addDouble(@NonNull String key, double value) {
+        int index = add(key, TYPE_DOUBLE);
+        mDoubles[index] = value;
+    }
+
+    void addFloat(@NonNull String key, float value) {
+        int index = add(key, TYPE_FLOAT);
+        mDoubles[index] = value;
+    }
+
+    void addString(@NonNull String key, @Nullable String value) {
+        int index = add(key, TYPE_STRING);
+        mObjects[index] = value;
+    }
+
+    void addObject(@NonNull String key, @Nullable Object value) {
+        int index = add(key, TYPE_OBJECT);
+        mObjects[index] = value;
+    }
+
+    // Replaces object values with their string, as they may change once the caller returns
+    void snapshotObjects() {
+        for (int i = 0; i < mSize; i++) {
+            Object value = mObjects[i];
+            if (mTypes[i] == TYPE_OBJECT && value != null && !(value instanceof String)) {
+                mObjects[i] = MessageFormatter.safeToString(value);
+            }
+        }
+        mString = null;
+    }
+
+    // Copies values as they are, so call snapshotObjects() on fields first if they need to outlive the caller
+    void copyFrom(@NonNull BunyanFields fields) {
+        clear();
+        for (int i = 0; i < fields.mSize; i++) {
+            int index = add(fields.mKeys[i], fields.mTypes[i]);
+            mLongs[index] = fields.mLongs[i];
+            mDoubles[index] = fields.mDoubles[i];
+            mObjects[index] = fields.mObjects[i];
+        }
+    }
+
+    void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mKeys[i] = null;
+            mObjects[i] = null;
+        }
+        mSize = 0;
+        mString = null;
+    }
+
+    private int add(@NonNull String key, @Type int type) {
+        if (mSize == mKeys.length) {
+            grow();
+        }
+
+        int index = mSize++;
+        mKeys[index] = key;
+        mTypes[index] = type;
+        mString = null;
+        return index;
+    }
+
+    private void grow() {
+        int capacity = mKeys.length * 2;
+        String[] keys = new String[capacity];
+        int[] types = new int[capacity];
+        long[] longs = new long[capacity];
+        double[] doubles = new double[capacity];
+        Object[] objects = new Object[capacity];
+        System.arraycopy(mKeys, 0, keys, 0, mSize);
+        System.arraycopy(mTypes, 0, types, 0, mSize);
+        System.arraycopy(mLongs, 0, longs, 0, mSize);
+        System.arraycopy(mDoubles, 0, doubles, 0, mSize);
+        System.arraycopy(mObjects, 0, objects, 0, mSize);
+        mKeys = keys;
+        mTypes = types;
+        mLongs = longs;
+        mDoubles = doubles;
+        mObjects = objects;
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.oriley.bunyan;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import me.oriley.bunyan.Bunyan.Level;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Writes events as JSON lines (NDJSON), one object per event:
+ *
+ *     {"time":"2016-06-01T12:00:00.000Z","level":"INFO","tag":"MyClass","thread":"main","message":"...",
+ *      "throwable":"...","mdc":{"session":"abc"},"fields":{"user":42}}
+ *
+ * The throwable (as its stack trace), MDC and fields are left out when there aren't any. Events are encoded straight
+ * into a reused byte array, see BunyanJsonEncoder, and handed to a Sink, either after each event or once bufferSize
+ * bytes have built up. Buffered events are written immediately for ERROR and above, on flush(), and otherwise within
+ * flushIntervalMillis of the first one being buffered, from a background thread started with the first event.
+ *
+ * The time and thread are those of the original log call, so they stay accurate with async logging enabled.
+ *
+ * If the sink throws, events are dropped for a few seconds and then written to it again, as with the file appenders.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class BunyanJsonAppender extends BunyanAppender {
+
+    // Where encoded events end up. Only ever called by one thread at a time
+    public interface Sink {
+
+        void write(@NonNull byte[] bytes, int offset, int length) throws IOException;
+
+        void flush() throws IOException;
+    }
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+    private static final String TAG = BunyanJsonAppender.class.getSimpleName();
+    private static final String THREAD_NAME = "Bunyan-Json";
+    private static final long RETRY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    // Stack trace buffers grown past this are dropped after use rather than kept
+    private static final int MAX_RETAINED_BUFFER_LENGTH = 16 * 1024;
+
+    @NonNull
+    private final Sink mSink;
+
+    private final int mBufferSize;
+
+    private final long mFlushIntervalMillis;
+
+    // Guarded by this, as is everything below
+    @NonNull
+    private final BunyanJsonEncoder mEncoder = new BunyanJsonEncoder();
+
+    @NonNull
+    private StackTraceBuffer mStackTraceBuffer = new StackTraceBuffer();
+
+    @Nullable
+    private ScheduledExecutorService mExecutor;
+
+    private boolean mFailed;
+
+    private long mFailedNanos;
+
+
+    public BunyanJsonAppender(@NonNull Sink sink) {
+        this(sink, 0);
+    }
+
+    // A bufferSize of 0 writes each event to the sink as soon as it is encoded
+    public BunyanJsonAppender(@NonNull Sink sink, int bufferSize) {
+        this(sink, bufferSize, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    public BunyanJsonAppender(@NonNull Sink sink, int bufferSize, long flushIntervalMillis) {
+        if (flushIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Flush interval must be positive");
+        }
+        mSink = sink;
+        mBufferSize = bufferSize;
+        mFlushIntervalMillis = flushIntervalMillis;
+    }
+
+
+    @Override
+    public void logEvent(@Level int level, @NonNull String tag, @NonNull String message, @Nullable Throwable t) {
+        encode(level, tag, message, null, BunyanMdc.Snapshot.EMPTY, 0, null, t);
+    }
+
+    @Override
+    public void logEvent(@Level int level,
+                         @NonNull String tag,
+                         @NonNull BunyanMessage message,
+                         @NonNull BunyanFields fields,
+                         @Nullable Throwable t) {
+        encode(level, tag, message.getString(), fields, BunyanMdc.Snapshot.EMPTY, 0, null, t);
+    }
+
+    @Override
+    public void logEvent(@Level int level,
+                         @NonNull String tag,
+                         @NonNull BunyanMessage message,
+                         @Nullable BunyanFields fields,
+                         @NonNull BunyanMdc.Snapshot mdc,
+                         @Nullable Throwable t) {
+        encode(level, tag, message.getString(), fields, mdc, 0, null, t);
+    }
+
+    @Override
+    public void logEvent(@Level int level,
+                         @NonNull String tag,
+                         @NonNull BunyanMessage message,
+                         @Nullable BunyanFields fields,
+                         @NonNull BunyanMdc.Snapshot mdc,
+                         long timestamp,
+                         @Nullable String threadName,
+                         @Nullable Throwable t) {
+        encode(level, tag, message.getString(), fields, mdc, timestamp, threadName, t);
+    }
+
+    @Override
+    protected boolean usesEventDetails() {
+        return true;
+    }
+
+    // Writes out any buffered events and flushes the sink
+    public synchronized void flush() {
+        if (write()) {
+            try {
+                mSink.flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    private synchronized void encode(@Level int level,
+                                     @NonNull String tag,
+                                     @NonNull String message,
+                                     @Nullable BunyanFields fields,
+                                     @NonNull BunyanMdc.Snapshot mdc,
+                                     long timestamp,
+                                     @Nullable String threadName,
+                                     @Nullable Throwable t) {
+        if (isFailed()) {
+            return;
+        }
+
+        StringBuilder stackTrace = null;
+        if (t != null) {
+            stackTrace = mStackTraceBuffer.getBuilder();
+            t.printStackTrace(mStackTraceBuffer.getPrintWriter());
+            if (stackTrace.length() > 0 && stackTrace.charAt(stackTrace.length() - 1) == '\n') {
+                stackTrace.setLength(stackTrace.length() - 1);
+            }
+        }
+
+        // Both are missing if this appender is called directly, rather than by Bunyan
+        if (timestamp == 0) {
+            timestamp = System.currentTimeMillis();
+        }
+        if (threadName == null) {
+            threadName = Thread.currentThread().getName();
+        }
+
+        boolean wasEmpty = mEncoder.getLength() == 0;
+        mEncoder.encode(level, timestamp, tag, threadName, message, stackTrace, fields, mdc);
+
+        if (stackTrace != null) {
+            if (stackTrace.capacity() > MAX_RETAINED_BUFFER_LENGTH) {
+                mStackTraceBuffer = new StackTraceBuffer();
+            } else {
+                stackTrace.setLength(0);
+            }
+        }
+
+        if (mEncoder.getLength() >= mBufferSize || level >= Log.ERROR) {
+            write();
+        } else if (wasEmpty) {
+            scheduleFlush();
+        }
+    }
+
+    // Called holding the lock, writes the events buffered so far once the interval has passed
+    private void scheduleFlush() {
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread thread = new Thread(r, THREAD_NAME);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, mFlushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Called holding the lock, returns false if the sink has failed
+    private boolean write() {
+        if (isFailed()) {
+            return false;
+        }
+
+        try {
+            if (mEncoder.getLength() > 0) {
+                mSink.write(mEncoder.getBytes(), 0, mEncoder.getLength());
+            }
+            return true;
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        } finally {
+            mEncoder.clear();
+        }
+    }
+
+    // Called holding the lock
+    private boolean isFailed() {
+        if (mFailed && System.nanoTime() - mFailedNanos >= RETRY_INTERVAL_NANOS) {
+            mFailed = false;
+        }
+        return mFailed;
+    }
+
+    private void fail(@NonNull IOException e) {
+        Log.e(TAG, "Unable to write to sink, dropping events for now", e);
+        mFailed = true;
+        mFailedNanos = System.nanoTime();
+    }
+
+    // Writes to a stream, such as a socket's, or a ByteArrayOutputStream to keep events in memory
+    public static class StreamSink implements Sink {
+
+        @NonNull
+        private final OutputStream mStream;
+
+
+        public StreamSink(@NonNull OutputStream stream) {
+            mStream = stream;
+        }
+
+
+        @Override
+        public void write(@NonNull byte[] bytes, int offset, int length) throws IOException {
+            mStream.write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mStream.flush();
+        }
+    }
+
+    // Writes to a channel, such as a FileChannel opened for appending
+    public static class ChannelSink implements Sink {
+
+        @NonNull
+        private final WritableByteChannel mChannel;
+
+        // Wraps the encoder's array, rewrapped only when the encoder grows or drops it
+        @Nullable
+        private ByteBuffer mBuffer;
+
+
+        public ChannelSink(@NonNull WritableByteChannel channel) {
+            mChannel = channel;
+        }
+
+
+        @Override
+        public void write(@NonNull byte[] bytes, int offset, int length) throws IOException {
+            ByteBuffer buffer = mBuffer;
+            if (buffer == null || buffer.array() != bytes) {
+                buffer = mBuffer = ByteBuffer.wrap(bytes);
+            }
+            buffer.clear();
+            buffer.limit(offset + length);
+            buffer.position(offset);
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+        }
+
+        @Override
+        public void flush() {
+            // Channel writes aren't buffered
+        }
+    }
+}
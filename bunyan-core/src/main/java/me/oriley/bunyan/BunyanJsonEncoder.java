@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.oriley.bunyan;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import me.oriley.bunyan.Bunyan.Level;
+
+/*
+ * Writes events as single line JSON objects straight into a reused byte array, escaping and UTF-8 encoding strings a
+ * char at a time rather than building an object model or intermediate strings. Only doubles (through
+ * Double.toString()) and object field values (through toString()) allocate.
+ *
+ * Not thread safe, BunyanJsonAppender encodes one event at a time.
+ */
+final class BunyanJsonEncoder {
+
+    private static final int INITIAL_CAPACITY = 4096;
+
+    // Shrunk back to the initial capacity after an event larger than this, usually a long stack trace
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    // Longest a single char can be encoded as, an escape like \u001f
+    private static final int MAX_CHAR_BYTES = 6;
+
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
+    private static final byte[] HEX_DIGITS = ascii("0123456789abcdef");
+
+    private static final byte[] TIME = ascii("{\"time\":\"");
+    private static final byte[] LEVEL = ascii("\",\"level\":\"");
+    private static final byte[] TAG = ascii("\",\"tag\":");
+    private static final byte[] THREAD = ascii(",\"thread\":");
+    private static final byte[] MESSAGE = ascii(",\"message\":");
+    private static final byte[] THROWABLE = ascii(",\"throwable\":");
+    private static final byte[] MDC = ascii(",\"mdc\":{");
+    private static final byte[] FIELDS = ascii(",\"fields\":{");
+    private static final byte[] TRUE = ascii("true");
+    private static final byte[] FALSE = ascii("false");
+    private static final byte[] NULL = ascii("null");
+    private static final byte[] MIN_LONG = ascii(String.valueOf(Long.MIN_VALUE));
+
+    private static final byte[][] LEVEL_NAMES = {
+            ascii("?"), ascii("?"),
+            ascii("VERBOSE"), ascii("DEBUG"), ascii("INFO"), ascii("WARN"), ascii("ERROR"), ascii("ASSERT")
+    };
+
+    @NonNull
+    private byte[] mBytes = new byte[INITIAL_CAPACITY];
+
+    private int mLength;
+
+
+    // Appends one event followed by a newline
+    void encode(@Level int level,
+                long timestamp,
+                @NonNull String tag,
+                @NonNull String threadName,
+                @NonNull String message,
+                @Nullable CharSequence stackTrace,
+                @Nullable BunyanFields fields,
+                @NonNull BunyanMdc.Snapshot mdc) {
+        writeBytes(TIME);
+        writeTimestamp(timestamp);
+        writeBytes(LEVEL);
+        writeBytes(level >= 0 && level < LEVEL_NAMES.length ? LEVEL_NAMES[level] : LEVEL_NAMES[0]);
+        writeBytes(TAG);
+        writeString(tag);
+        writeBytes(THREAD);
+        writeString(threadName);
+        writeBytes(MESSAGE);
+        writeString(message);
+
+        if (stackTrace != null) {
+            writeBytes(THROWABLE);
+            writeString(stackTrace);
+        }
+
+        if (mdc.size() > 0) {
+            writeBytes(MDC);
+            for (int i = 0; i < mdc.size(); i++) {
+                if (i > 0) {
+                    writeByte(',');
+                }
+                writeString(mdc.getKey(i));
+                writeByte(':');
+                writeString(mdc.getValue(i));
+            }
+            writeByte('}');
+        }
+
+        if (fields != null && fields.size() > 0) {
+            writeBytes(FIELDS);
+            for (int i = 0; i < fields.size(); i++) {
+                if (i > 0) {
+                    writeByte(',');
+                }
+                writeString(fields.getKey(i));
+                writeByte(':');
+                writeField(fields, i);
+            }
+            writeByte('}');
+        }
+
+        writeByte('}');
+        writeByte('\n');
+    }
+
+    @NonNull
+    byte[] getBytes() {
+        return mBytes;
+    }
+
+    int getLength() {
+        return mLength;
+    }
+
+    void clear() {
+        mLength = 0;
+        if (mBytes.length > MAX_RETAINED_CAPACITY) {
+            mBytes = new byte[INITIAL_CAPACITY];
+        }
+    }
+
+    private void writeField(@NonNull BunyanFields fields, int index) {
+        switch (fields.getType(index)) {
+            case BunyanFields.TYPE_BOOLEAN:
+                writeBytes(fields.getBoolean(index) ? TRUE : FALSE);
+                break;
+            case BunyanFields.TYPE_LONG:
+                writeLong(fields.getLong(index));
+                break;
+            case BunyanFields.TYPE_DOUBLE:
+                writeDouble(fields.getDouble(index));
+                break;
+            case BunyanFields.TYPE_FLOAT:
+                writeFloat(fields.getFloat(index));
+                break;
+            default:
+                Object value = fields.getObject(index);
+                if (value == null) {
+                    writeBytes(NULL);
+                } else {
+                    writeString(MessageFormatter.safeToString(value));
+                }
+                break;
+        }
+    }
+
+    private void writeString(@NonNull CharSequence s) {
+        writeByte('"');
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            ensureCapacity(MAX_CHAR_BYTES);
+            byte[] bytes = mBytes;
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (c >= 0x20 && c != '"' && c != '\\') {
+                    bytes[mLength++] = (byte) c;
+                } else {
+                    writeEscape(c);
+                }
+            } else if (c < 0x800) {
+                bytes[mLength++] = (byte) (0xC0 | c >> 6);
+                bytes[mLength++] = (byte) (0x80 | c & 0x3F);
+            } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                bytes[mLength++] = (byte) (0xE0 | c >> 12);
+                bytes[mLength++] = (byte) (0x80 | c >> 6 & 0x3F);
+                bytes[mLength++] = (byte) (0x80 | c & 0x3F);
+            } else if (c <= Character.MAX_HIGH_SURROGATE && i + 1 < length
+                    && s.charAt(i + 1) >= Character.MIN_LOW_SURROGATE
+                    && s.charAt(i + 1) <= Character.MAX_LOW_SURROGATE) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                bytes[mLength++] = (byte) (0xF0 | codePoint >> 18);
+                bytes[mLength++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                bytes[mLength++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                bytes[mLength++] = (byte) (0x80 | codePoint & 0x3F);
+            } else {
+                // Unpaired surrogate, which has no UTF-8 encoding
+                bytes[mLength++] = '?';
+            }
+        }
+        writeByte('"');
+    }
+
+    // Called with room for MAX_CHAR_BYTES
+    private void writeEscape(char c) {
+        byte[] bytes = mBytes;
+        bytes[mLength++] = '\\';
+        switch (c) {
+            case '"':
+                bytes[mLength++] = '"';
+                break;
+            case '\\':
+                bytes[mLength++] = '\\';
+                break;
+            case '\n':
+                bytes[mLength++] = 'n';
+                break;
+            case '\r':
+                bytes[mLength++] = 'r';
+                break;
+            case '\t':
+                bytes[mLength++] = 't';
+                break;
+            case '\b':
+                bytes[mLength++] = 'b';
+                break;
+            case '\f':
+                bytes[mLength++] = 'f';
+                break;
+            default:
+                bytes[mLength++] = 'u';
+                bytes[mLength++] = '0';
+                bytes[mLength++] = '0';
+                bytes[mLength++] = HEX_DIGITS[c >> 4];
+                bytes[mLength++] = HEX_DIGITS[c & 0xF];
+                break;
+        }
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeBytes(MIN_LONG);
+            return;
+        }
+
+        ensureCapacity(MIN_LONG.length);
+        if (value < 0) {
+            mBytes[mLength++] = '-';
+            value = -value;
+        }
+
+        // Written backwards, then reversed
+        int start = mLength;
+        do {
+            mBytes[mLength++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+
+        for (int i = start, j = mLength - 1; i < j; i++, j--) {
+            byte b = mBytes[i];
+            mBytes[i] = mBytes[j];
+            mBytes[j] = b;
+        }
+    }
+
+    // JSON has no NaN or infinity, so those are written as strings
+    private void writeDouble(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            writeString(Double.toString(value));
+        } else if (value == (long) value && Math.abs(value) < 1e15) {
+            writeLong((long) value);
+        } else {
+            writeNumber(Double.toString(value));
+        }
+    }
+
+    // As above, but with the float's own digits rather than those of its widened double
+    private void writeFloat(float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value) || (value == (long) value && Math.abs(value) < 1e15)) {
+            writeDouble(value);
+        } else {
+            writeNumber(Float.toString(value));
+        }
+    }
+
+    // Numbers are always ASCII
+    private void writeNumber(@NonNull String s) {
+        ensureCapacity(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            mBytes[mLength++] = (byte) s.charAt(i);
+        }
+    }
+
+    // ISO 8601 in UTC, yyyy-MM-ddTHH:mm:ss.SSSZ, worked out by hand as the date formatting classes allocate
+    private void writeTimestamp(long millis) {
+        long days = millis / MILLIS_PER_DAY;
+        long millisOfDay = millis % MILLIS_PER_DAY;
+        if (millisOfDay < 0) {
+            days--;
+            millisOfDay += MILLIS_PER_DAY;
+        }
+
+        // Days to civil date, see http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+        int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        int seconds = (int) (millisOfDay / 1000);
+        ensureCapacity(24);
+        writeDigits(year, 4);
+        mBytes[mLength++] = '-';
+        writeDigits(month, 2);
+        mBytes[mLength++] = '-';
+        writeDigits(day, 2);
+        mBytes[mLength++] = 'T';
+        writeDigits(seconds / 3600, 2);
+        mBytes[mLength++] = ':';
+        writeDigits(seconds / 60 % 60, 2);
+        mBytes[mLength++] = ':';
+        writeDigits(seconds % 60, 2);
+        mBytes[mLength++] = '.';
+        writeDigits((int) (millisOfDay % 1000), 3);
+        mBytes[mLength++] = 'Z';
+    }
+
+    // Zero padded, called with enough room
+    private void writeDigits(int value, int count) {
+        for (int i = mLength + count - 1; i >= mLength; i--) {
+            mBytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        mLength += count;
+    }
+
+    private void writeBytes(@NonNull byte[] b) {
+        ensureCapacity(b.length);
+        System.arraycopy(b, 0, mBytes, mLength, b.length);
+        mLength += b.length;
+    }
+
+    private void writeByte(char c) {
+        ensureCapacity(1);
+        mBytes[mLength++] = (byte) c;
+    }
+
+    private void ensureCapacity(int count) {
+        if (mLength + count > mBytes.length) {
+            byte[] bytes = new byte[Math.max(mBytes.length * 2, mLength + count)];
+            System.arraycopy(mBytes, 0, bytes, 0, mLength);
+            mBytes = bytes;
+        }
+    }
+
+    @NonNull
+    private static byte[] ascii(@NonNull String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+}
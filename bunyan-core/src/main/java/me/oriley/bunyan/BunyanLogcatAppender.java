@@ -26,37 +26,113 @@ import me.oriley.bunyan.Bunyan.Level;
  *
  * If TagStyle set to restricted, will limit length to 23 characters (based on https://github.com/mvysny/slf4j-handroid)
  *
- * Log messages are line wrapped every 4000 characters due to limit (based on https://github.com/JakeWharton/timber)
+ * Messages too long for a single logcat entry are split into chunks as close to the limit as possible, breaking at the
+ * last newline that fits where there is one. Log.println() only accepts strings, so each chunk is the only copy made.
+ * Stack traces are written through the same path with the event's tag and level, using a buffer reused per thread.
  */
 @SuppressWarnings("unused")
 public final class BunyanLogcatAppender extends BunyanAppender {
 
-    private static final int MAX_MSG_LENGTH = 4000;
+    // liblog's payload limit, less the priority byte and the tag and message terminators
+    private static final int MAX_PAYLOAD_BYTES = 4068 - 3;
+    private static final int MIN_MSG_BYTES = 1024;
     private static final int MAX_TAG_LENGTH = 23;
 
+    // Stack trace buffers grown past this are dropped after use rather than kept
+    private static final int MAX_RETAINED_BUFFER_LENGTH = 16 * 1024;
+
+    @NonNull
+    private static final ThreadLocal<StackTraceBuffer> sStackTraceBuffer = new ThreadLocal<StackTraceBuffer>() {
+        @Override
+        protected StackTraceBuffer initialValue() {
+            return new StackTraceBuffer();
+        }
+    };
+
     @Override
     public void logEvent(@Level int level,
                          @NonNull String tag,
                          @NonNull String message,
                          @Nullable Throwable t) {
-        if (message.length() < MAX_MSG_LENGTH) {
-            Log.println(level, tag, message);
-        } else {
-            for (int i = 0, length = message.length(); i < length; i++) {
-                int newline = message.indexOf('\n', i);
-                newline = newline != -1 ? newline : length;
-
-                while (i < newline) {
-                    int end = Math.min(newline, i + MAX_MSG_LENGTH);
-                    String part = message.substring(i, end);
-                    Log.println(level, tag, part);
-                    i = end;
+        // Worked out once for every chunk of the event
+        int maxBytes = Math.max(MIN_MSG_BYTES, MAX_PAYLOAD_BYTES - getUtf8Length(tag, 0, tag.length()));
+        println(level, tag, message, maxBytes);
+
+        if (t != null) {
+            StackTraceBuffer buffer = sStackTraceBuffer.get();
+            StringBuilder builder = buffer.getBuilder();
+            t.printStackTrace(buffer.getPrintWriter());
+            if (builder.length() > 0 && builder.charAt(builder.length() - 1) == '\n') {
+                builder.setLength(builder.length() - 1);
+            }
+            println(level, tag, builder, maxBytes);
+
+            if (builder.capacity() > MAX_RETAINED_BUFFER_LENGTH) {
+                sStackTraceBuffer.remove();
+            } else {
+                builder.setLength(0);
+            }
+        }
+    }
+
+    private static void println(@Level int level, @NonNull String tag, @NonNull CharSequence message, int maxBytes) {
+        int length = message.length();
+
+        // Can't be over the limit even if every character took three bytes
+        if (length * 3 <= maxBytes) {
+            Log.println(level, tag, message.toString());
+            return;
+        }
+
+        int start = 0;
+        while (start < length) {
+            int end = findChunkEnd(message, start, maxBytes);
+            if (end > start) {
+                Log.println(level, tag, message.subSequence(start, end).toString());
+            }
+
+            // The newline a chunk was broken at isn't needed
+            start = end < length && message.charAt(end) == '\n' ? end + 1 : end;
+        }
+    }
+
+    private static int findChunkEnd(@NonNull CharSequence message, int start, int maxBytes) {
+        int length = message.length();
+        int lastNewline = -1;
+        int bytes = 0;
+        for (int i = start; i < length; i++) {
+            char c = message.charAt(i);
+            bytes += getUtf8Length(c);
+            if (bytes > maxBytes) {
+                if (lastNewline > start) {
+                    return lastNewline;
                 }
+
+                // Don't split a surrogate pair
+                return i > start + 1 && Character.isHighSurrogate(message.charAt(i - 1)) ? i - 1 : i;
+            } else if (c == '\n') {
+                lastNewline = i;
             }
         }
+        return length;
+    }
 
-        if (t != null) {
-            t.printStackTrace();
+    private static int getUtf8Length(@NonNull CharSequence s, int start, int end) {
+        int bytes = 0;
+        for (int i = start; i < end; i++) {
+            bytes += getUtf8Length(s.charAt(i));
+        }
+        return bytes;
+    }
+
+    // Each half of a surrogate pair counts as two bytes, so the pair counts as four
+    private static int getUtf8Length(char c) {
+        if (c < 0x80) {
+            return 1;
+        } else if (c < 0x800 || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)) {
+            return 2;
+        } else {
+            return 3;
         }
     }
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.oriley.bunyan;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+ * Loggers created by a logger factory, so that asking for the same class or name again returns the same instance.
+ *
+ * Class and name loggers are kept apart, as they encode tags differently. Every registry is also tracked globally, so
+ * Bunyan.getLoggerNames() can list the loggers in use, i.e. to choose one to pass to Bunyan.setLevel().
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class BunyanLoggerRegistry<T extends BunyanCoreLogger> {
+
+    public interface Factory<T> {
+
+        @NonNull
+        T create(@NonNull Class c);
+
+        @NonNull
+        T create(@NonNull String name);
+    }
+
+    @NonNull
+    private static final List<BunyanLoggerRegistry<?>> sRegistries = new CopyOnWriteArrayList<>();
+
+    @NonNull
+    private final Factory<T> mFactory;
+
+    @NonNull
+    private final ConcurrentHashMap<Class, T> mClassLoggers = new ConcurrentHashMap<>();
+
+    @NonNull
+    private final ConcurrentHashMap<String, T> mNameLoggers = new ConcurrentHashMap<>();
+
+
+    public BunyanLoggerRegistry(@NonNull Factory<T> factory) {
+        mFactory = factory;
+        sRegistries.add(this);
+    }
+
+
+    @NonNull
+    public T getLogger(@NonNull Class c) {
+        T logger = mClassLoggers.get(c);
+        if (logger == null) {
+            // Racing callers may both create one, but only the first is ever handed out
+            T created = mFactory.create(c);
+            logger = mClassLoggers.putIfAbsent(c, created);
+            if (logger == null) {
+                logger = created;
+            }
+        }
+        return logger;
+    }
+
+    @NonNull
+    public T getLogger(@NonNull String name) {
+        T logger = mNameLoggers.get(name);
+        if (logger == null) {
+            T created = mFactory.create(name);
+            logger = mNameLoggers.putIfAbsent(name, created);
+            if (logger == null) {
+                logger = created;
+            }
+        }
+        return logger;
+    }
+
+    @NonNull
+    static Set<String> getLoggerNames() {
+        Set<String> names = new TreeSet<>();
+        for (BunyanLoggerRegistry<?> registry : sRegistries) {
+            for (Class c : registry.mClassLoggers.keySet()) {
+                names.add(c.getName());
+            }
+            names.addAll(registry.mNameLoggers.keySet());
+        }
+        return names;
+    }
+}
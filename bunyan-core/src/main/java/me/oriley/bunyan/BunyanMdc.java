@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.oriley.bunyan;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Mapped diagnostic context, values such as a session or request id kept per thread and attached to every event
+ * logged on it. Tag patterns can include a value with %X{key}, and appenders receive the whole context with each event.
+ *
+ * Each thread's context is an immutable Snapshot, replaced rather than changed, so capturing it with an event (and
+ * handing it to the async dispatch thread) is a single reference copy. Changes copy the snapshot instead, which is
+ * cheap for the handful of keys a context usually holds, and far rarer than logging calls.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class BunyanMdc {
+
+    @NonNull
+    private static final ThreadLocal<Snapshot> sSnapshot = new ThreadLocal<Snapshot>() {
+        @Override
+        protected Snapshot initialValue() {
+            return Snapshot.EMPTY;
+        }
+    };
+
+    // Set by the first change, so nothing is looked up per event until then
+    private static volatile boolean sUsed;
+
+
+    // A null value removes the key
+    public static void put(@NonNull String key, @Nullable String value) {
+        if (value == null) {
+            remove(key);
+            return;
+        }
+
+        sUsed = true;
+        sSnapshot.set(sSnapshot.get().with(key, value));
+    }
+
+    @Nullable
+    public static String get(@NonNull String key) {
+        return getSnapshot().get(key);
+    }
+
+    public static void remove(@NonNull String key) {
+        if (sUsed) {
+            sSnapshot.set(sSnapshot.get().without(key));
+        }
+    }
+
+    public static void clear() {
+        if (sUsed) {
+            sSnapshot.set(Snapshot.EMPTY);
+        }
+    }
+
+    // The calling thread's context, which won't change once taken
+    @NonNull
+    public static Snapshot getSnapshot() {
+        return sUsed ? sSnapshot.get() : Snapshot.EMPTY;
+    }
+
+    // Replaces the calling thread's context, for example with one taken on the thread that queued a task
+    public static void setSnapshot(@NonNull Snapshot snapshot) {
+        if (sUsed || snapshot.size() > 0) {
+            sUsed = true;
+            sSnapshot.set(snapshot);
+        }
+    }
+
+    public static final class Snapshot {
+
+        @NonNull
+        public static final Snapshot EMPTY = new Snapshot(new String[0], new String[0]);
+
+        @NonNull
+        private final String[] mKeys;
+
+        @NonNull
+        private final String[] mValues;
+
+
+        private Snapshot(@NonNull String[] keys, @NonNull String[] values) {
+            mKeys = keys;
+            mValues = values;
+        }
+
+
+        public int size() {
+            return mKeys.length;
+        }
+
+        @NonNull
+        public String getKey(int index) {
+            return mKeys[index];
+        }
+
+        @NonNull
+        public String getValue(int index) {
+            return mValues[index];
+        }
+
+        @Nullable
+        public String get(@NonNull String key) {
+            int index = indexOf(key);
+            return index >= 0 ? mValues[index] : null;
+        }
+
+        @NonNull
+        public Map<String, String> toMap() {
+            Map<String, String> map = new HashMap<>(mKeys.length * 2);
+            for (int i = 0; i < mKeys.length; i++) {
+                map.put(mKeys[i], mValues[i]);
+            }
+            return map;
+        }
+
+        @NonNull
+        public static Snapshot fromMap(@Nullable Map<String, String> map) {
+            Snapshot snapshot = EMPTY;
+            if (map != null) {
+                for (Map.Entry<String, String> entry : map.entrySet()) {
+                    if (entry.getKey() != null && entry.getValue() != null) {
+                        snapshot = snapshot.with(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            return snapshot;
+        }
+
+        @NonNull
+        Snapshot with(@NonNull String key, @NonNull String value) {
+            int index = indexOf(key);
+            if (index >= 0) {
+                if (value.equals(mValues[index])) {
+                    return this;
+                }
+
+                String[] values = mValues.clone();
+                values[index] = value;
+                return new Snapshot(mKeys, values);
+            }
+
+            int size = mKeys.length;
+            String[] keys = new String[size + 1];
+            String[] values = new String[size + 1];
+            System.arraycopy(mKeys, 0, keys, 0, size);
+            System.arraycopy(mValues, 0, values, 0, size);
+            keys[size] = key;
+            values[size] = value;
+            return new Snapshot(keys, values);
+        }
+
+        @NonNull
+        Snapshot without(@NonNull String key) {
+            int index = indexOf(key);
+            if (index < 0) {
+                return this;
+            } else if (mKeys.length == 1) {
+                return EMPTY;
+            }
+
+            int size = mKeys.length - 1;
+            String[] keys = new String[size];
+            String[] values = new String[size];
+            System.arraycopy(mKeys, 0, keys, 0, index);
+            System.arraycopy(mValues, 0, values, 0, index);
+            System.arraycopy(mKeys, index + 1, keys, index, size - index);
+            System.arraycopy(mValues, index + 1, values, index, size - index);
+            return new Snapshot(keys, values);
+        }
+
+        private int indexOf(@NonNull String key) {
+            for (int i = 0; i < mKeys.length; i++) {
+                if (mKeys[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
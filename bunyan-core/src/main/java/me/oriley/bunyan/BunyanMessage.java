@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.oriley.bunyan;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/*
+ * A log message as passed by the caller, a pattern and its arguments, which is only formatted when first asked for.
+ * The result is kept, so every appender that needs the string shares the same one.
+ *
+ * Instances are reused per thread, so a message is only valid for the duration of the logEvent call it was passed to.
+ * Appenders that hold on to events should keep the result of getString() instead.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class BunyanMessage {
+
+    private static final int LITERAL = 0;
+    private static final int OBJECTS = 1;
+    private static final int BOOLEAN = 2;
+    private static final int CHAR = 3;
+    private static final int LONG = 4;
+    private static final int FLOAT = 5;
+    private static final int DOUBLE = 6;
+    private static final int LONG_PAIR = 7;
+
+    @NonNull
+    private static final ThreadLocal<BunyanMessage> sMessage = new ThreadLocal<BunyanMessage>() {
+        @Override
+        protected BunyanMessage initialValue() {
+            return new BunyanMessage();
+        }
+    };
+
+    private int mType;
+
+    private String mPattern;
+
+    // Object arguments come from mArgArray if present, otherwise mArg1 to mArg3
+    @Nullable
+    private Object[] mArgArray;
+
+    private int mArgCount;
+
+    @Nullable
+    private Object mArg1;
+
+    @Nullable
+    private Object mArg2;
+
+    @Nullable
+    private Object mArg3;
+
+    // Primitive arguments, with booleans and chars widened to a long
+    private long mLong1;
+
+    private long mLong2;
+
+    private float mFloat;
+
+    private double mDouble;
+
+    @Nullable
+    private String mString;
+
+    private boolean mInUse;
+
+
+    private BunyanMessage() {
+    }
+
+
+    // Must be followed by a call to recycle() once the event has been logged
+    @NonNull
+    static BunyanMessage obtain() {
+        BunyanMessage message = sMessage.get();
+        if (message.mInUse) {
+            // Logging from within an argument's toString() or an appender, so leave the outer message alone
+            message = new BunyanMessage();
+        }
+
+        message.mInUse = true;
+        return message;
+    }
+
+    void recycle() {
+        mPattern = null;
+        mArgArray = null;
+        mArg1 = null;
+        mArg2 = null;
+        mArg3 = null;
+        mString = null;
+        mInUse = false;
+    }
+
+    @NonNull
+    BunyanMessage setLiteral(@NonNull String message) {
+        mType = LITERAL;
+        mPattern = message;
+        mString = message;
+        return this;
+    }
+
+    @NonNull
+    BunyanMessage setArguments(@NonNull String pattern, @Nullable Object[] argArray, int argCount) {
+        mType = OBJECTS;
+        mPattern = pattern;
+        mArgArray = argArray;
+        mArgCount = argCount;
+        return this;
+    }
+
+    @NonNull
+    BunyanMessage setArguments(@NonNull String pattern,
+                               int argCount,
+                               @Nullable Object arg1,
+                               @Nullable Object arg2,
+                               @Nullable Object arg3) {
+        mType = OBJECTS;
+        mPattern = pattern;
+        mArgCount = argCount;
+        mArg1 = arg1;
+        mArg2 = arg2;
+        mArg3 = arg3;
+        return this;
+    }
+
+    @NonNull
+    BunyanMessage setArgument(@NonNull String pattern, boolean arg) {
+        mType = BOOLEAN;
+        mPattern = pattern;
+        mLong1 = arg ? 1 : 0;
+        return this;
+    }
+
+    @NonNull
+    BunyanMessage setArgument(@NonNull String pattern, char arg) {
+        mType = CHAR;
+        mPattern = pattern;
+        mLong1 = arg;
+        return this;
+    }
+
+    @NonNull
+    BunyanMessage setArgument(@NonNull String pattern, long arg) {
+        mType = LONG;
+        mPattern = pattern;
+        mLong1 = arg;
+        return this;
+    }
+
+    @NonNull
+    BunyanMessage setArgument(@NonNull String pattern, float arg) {
+        mType = FLOAT;
+        mPattern = pattern;
+        mFloat = arg;
+        return this;
+    }
+
+    @NonNull
+    BunyanMessage setArgument(@NonNull String pattern, double arg) {
+        mType = DOUBLE;
+        mPattern = pattern;
+        mDouble = arg;
+        return this;
+    }
+
+    @NonNull
+    BunyanMessage setArguments(@NonNull String pattern, long arg1, long arg2) {
+        mType = LONG_PAIR;
+        mPattern = pattern;
+        mLong1 = arg1;
+        mLong2 = arg2;
+        return this;
+    }
+
+    // The unformatted message pattern
+    @NonNull
+    public String getPattern() {
+        return mPattern;
+    }
+
+    // Number of arguments, not including any trailing Throwable
+    public int getArgumentCount() {
+        switch (mType) {
+            case LITERAL:
+                return 0;
+            case OBJECTS:
+                return mArgCount;
+            case LONG_PAIR:
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+    // Primitive arguments are boxed here, so only appenders that ask for them pay for it
+    @Nullable
+    public Object getArgument(int index) {
+        if (index < 0 || index >= getArgumentCount()) {
+            throw new IndexOutOfBoundsException("Argument " + index + " of " + getArgumentCount());
+        }
+
+        switch (mType) {
+            case OBJECTS:
+                if (mArgArray != null) {
+                    return mArgArray[index];
+                }
+                return index == 0 ? mArg1 : index == 1 ? mArg2 : mArg3;
+            case BOOLEAN:
+                return mLong1 != 0;
+            case CHAR:
+                return (char) mLong1;
+            case FLOAT:
+                return mFloat;
+            case DOUBLE:
+                return mDouble;
+            default:
+                return index == 0 ? mLong1 : mLong2;
+        }
+    }
+
+    /*
+     * Whether every argument is a string, a boxed primitive or null, so formatting them later gives the same result as
+     * now and keeping them doesn't hold anything else in memory. Primitive arguments always are.
+     */
+    boolean hasImmutableArguments() {
+        if (mType != OBJECTS) {
+            return true;
+        }
+
+        for (int i = 0; i < mArgCount; i++) {
+            Object arg = mArgArray != null ? mArgArray[i] : i == 0 ? mArg1 : i == 1 ? mArg2 : mArg3;
+            if (arg != null && !isImmutable(arg.getClass())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The formatted message, which is built on the first call only
+    @NonNull
+    public String getString() {
+        if (mString == null) {
+            mString = format();
+        }
+        return mString;
+    }
+
+    // The formatted message if something has already asked for it, without formatting it now
+    @Nullable
+    String peekString() {
+        return mString;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return getString();
+    }
+
+    private static boolean isImmutable(@NonNull Class c) {
+        return c == String.class || c == Integer.class || c == Long.class || c == Boolean.class
+                || c == Character.class || c == Double.class || c == Float.class || c == Short.class
+                || c == Byte.class;
+    }
+
+    @NonNull
+    private String format() {
+        String message;
+        switch (mType) {
+            case OBJECTS:
+                message = mArgArray != null
+                        ? MessageFormatter.formatArray(mPattern, mArgArray, mArgCount)
+                        : MessageFormatter.format(mPattern, mArgCount, mArg1, mArg2, mArg3);
+                break;
+            case BOOLEAN:
+                message = MessageFormatter.format(mPattern, mLong1 != 0);
+                break;
+            case CHAR:
+                message = MessageFormatter.format(mPattern, (char) mLong1);
+                break;
+            case LONG:
+                message = MessageFormatter.format(mPattern, mLong1);
+                break;
+            case FLOAT:
+                message = MessageFormatter.format(mPattern, mFloat);
+                break;
+            case DOUBLE:
+                message = MessageFormatter.format(mPattern, mDouble);
+                break;
+            case LONG_PAIR:
+                message = MessageFormatter.format(mPattern, mLong1, mLong2);
+                break;
+            default:
+                message = mPattern;
+        }
+        return message != null ? message : mPattern;
+    }
+}
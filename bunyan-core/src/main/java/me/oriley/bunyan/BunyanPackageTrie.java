@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.oriley.bunyan;
+
+import android.support.annotation.NonNull;
+
+/*
+ * Package thresholds as a trie of name segments, in the flattened form generated by the plugin: node 0 is the root,
+ * and the children of node i are nodes children[i] up to children[i + 1].
+ *
+ * Logger names are matched a segment at a time without splitting them, and the deepest matching node with a threshold
+ * wins, so "com.app.net" takes precedence over "com.app" for "com.app.net.Client".
+ */
+final class BunyanPackageTrie {
+
+    static final int NO_THRESHOLD = -1;
+
+    @NonNull
+    private final String[] mSegments;
+
+    @NonNull
+    private final int[] mChildren;
+
+    // NO_THRESHOLD for nodes without one
+    @NonNull
+    private final int[] mThresholds;
+
+
+    BunyanPackageTrie(@NonNull String[] segments, @NonNull int[] children, @NonNull int[] thresholds) {
+        mSegments = segments;
+        mChildren = children;
+        mThresholds = thresholds;
+    }
+
+
+    int getThreshold(@NonNull String loggerName) {
+        if (mSegments.length == 0) {
+            return NO_THRESHOLD;
+        }
+
+        int threshold = mThresholds[0];
+        int node = 0;
+        int start = 0;
+        int length = loggerName.length();
+        while (start < length) {
+            int end = loggerName.indexOf('.', start);
+            if (end < 0) {
+                end = length;
+            }
+
+            int child = findChild(node, loggerName, start, end - start);
+            if (child < 0) {
+                break;
+            }
+
+            node = child;
+            if (mThresholds[node] != NO_THRESHOLD) {
+                threshold = mThresholds[node];
+            }
+            start = end + 1;
+        }
+        return threshold;
+    }
+
+    private int findChild(int node, @NonNull String loggerName, int start, int length) {
+        for (int child = mChildren[node], end = mChildren[node + 1]; child < end; child++) {
+            String segment = mSegments[child];
+            if (segment.length() == length && loggerName.regionMatches(start, segment, 0, length)) {
+                return child;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.oriley.bunyan;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import me.oriley.bunyan.Bunyan.Level;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Keeps the most recent events in memory, to be dumped or passed on to another appender only when something goes
+ * wrong. Slots are allocated up front and claimed with a single atomic increment. Messages whose arguments are all
+ * strings or boxed primitives are stored as their pattern and arguments, so they are only formatted if the events are
+ * ever read. Any other argument could change or hold something large (an Activity or Bitmap say) in memory, so those
+ * messages are formatted up front instead.
+ *
+ * Each slot is written and read holding its own lock, which is uncontended unless the buffer is being read, so an
+ * event is never read half written. Everything that calls out to other code (formatting) is done before a slot is
+ * claimed. Events overwritten before they are read are skipped.
+ *
+ * Events at or above the trigger level, and uncaught exceptions once the appender is added to BunyanCrashHandler, call
+ * onTrigger(), which by default replays any events not already replayed into the target appender. The target shouldn't also be
+ * added to Bunyan, or it will receive events twice. Replays for logged events run on a background thread, as there may
+ * be thousands of events and the trigger is often logged on the main thread. Uncaught exceptions replay straight away,
+ * before the process goes down.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class BunyanRingBufferAppender extends BunyanAppender implements BunyanCrashHandler.Listener {
+
+    private static final String TAG = BunyanRingBufferAppender.class.getSimpleName();
+    private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss.SSS";
+    private static final String THREAD_NAME = "Bunyan-RingBuffer";
+
+    // The replay thread stops once it has been idle this long
+    private static final long REPLAY_KEEP_ALIVE_SECONDS = 5;
+
+    // Arguments stored per slot, messages with more are formatted up front
+    private static final int MAX_ARGUMENTS = 4;
+
+    // Sequence of a slot that has never been written
+    private static final long EMPTY = -1;
+
+    @NonNull
+    private final Slot[] mSlots;
+
+    private final int mMask;
+
+    @Level
+    private final int mTriggerLevel;
+
+    @Nullable
+    private final BunyanAppender mTarget;
+
+    @NonNull
+    private final AtomicLong mNextSequence = new AtomicLong();
+
+    @NonNull
+    private final Object mReplayLock = new Object();
+
+    // Guarded by mReplayLock
+    private long mReplayedSequence;
+
+    // Set while a background replay is queued, so a burst of triggers only replays once
+    @NonNull
+    private final AtomicBoolean mReplayQueued = new AtomicBoolean();
+
+    @Nullable
+    private ThreadPoolExecutor mReplayExecutor;
+
+
+    public BunyanRingBufferAppender(int capacity) {
+        this(capacity, Log.ASSERT, null);
+    }
+
+    // Capacity is rounded up to a power of two
+    public BunyanRingBufferAppender(int capacity, @Level int triggerLevel, @Nullable BunyanAppender target) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+
+        mSlots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            mSlots[i] = new Slot();
+        }
+
+        mMask = size - 1;
+        mTriggerLevel = triggerLevel;
+        mTarget = target;
+    }
+
+
+    @Override
+    public void logEvent(@Level int level, @NonNull String tag, @NonNull String message, @Nullable Throwable t) {
+        write(level, tag, message, null, t);
+
+        if (level >= mTriggerLevel) {
+            onTrigger(level, t);
+        }
+    }
+
+    @Override
+    public void logEvent(@Level int level, @NonNull String tag, @NonNull BunyanMessage message, @Nullable Throwable t) {
+        String formatted = message.peekString();
+        if (formatted == null && (message.getArgumentCount() > MAX_ARGUMENTS || !message.hasImmutableArguments())) {
+            formatted = message.getString();
+        }
+
+        if (formatted != null) {
+            write(level, tag, formatted, null, t);
+        } else {
+            write(level, tag, message.getPattern(), message, t);
+        }
+
+        if (level >= mTriggerLevel) {
+            onTrigger(level, t);
+        }
+    }
+
+    // Adds uncaught exceptions to the buffer and calls onTrigger(), once added to an installed BunyanCrashHandler
+    @Override
+    public void onUncaughtException(@NonNull Thread thread, @NonNull Throwable throwable) {
+        write(Log.ASSERT, TAG, "Uncaught exception in thread " + thread.getName(), null, throwable);
+        onTrigger(Log.ASSERT, throwable);
+        if (mTarget != null) {
+            // The background replay may never get to run
+            replay(mTarget);
+        }
+    }
+
+    /*
+     * Called on the logging thread for events at or above the trigger level, after the event is added to the buffer.
+     * Queues a replay into the target appender on a background thread by default.
+     */
+    protected void onTrigger(@Level int level, @Nullable Throwable t) {
+        if (mTarget != null && mReplayQueued.compareAndSet(false, true)) {
+            getReplayExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    mReplayQueued.set(false);
+                    replay(mTarget);
+                }
+            });
+        }
+    }
+
+    // Passes on events that haven't been replayed before, oldest first
+    public void replay(@NonNull BunyanAppender target) {
+        synchronized (mReplayLock) {
+            long end = mNextSequence.get();
+            Event event = new Event();
+            for (long sequence = Math.max(mReplayedSequence, end - mSlots.length); sequence < end; sequence++) {
+                if (read(sequence, event)) {
+                    target.logEvent(event.level, event.tag, event.getMessage(), event.throwable);
+                }
+            }
+            mReplayedSequence = end;
+        }
+    }
+
+    // Writes out every event in the buffer as text, oldest first
+    public void dump(@NonNull Appendable out) throws IOException {
+        SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+        long end = mNextSequence.get();
+        Event event = new Event();
+        for (long sequence = Math.max(0, end - mSlots.length); sequence < end; sequence++) {
+            if (!read(sequence, event)) {
+                continue;
+            }
+
+            out.append(dateFormat.format(new Date(event.timestamp))).append(' ').append(getLevelChar(event.level))
+                    .append('/').append(event.tag).append(": ").append(event.getMessage()).append('\n');
+            if (event.throwable != null) {
+                StringWriter writer = new StringWriter();
+                event.throwable.printStackTrace(new PrintWriter(writer));
+                out.append(writer.toString());
+            }
+        }
+    }
+
+    public void dump(@NonNull File file) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            dump(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    public int getCapacity() {
+        return mSlots.length;
+    }
+
+    // A single thread, started when needed
+    @NonNull
+    private synchronized ThreadPoolExecutor getReplayExecutor() {
+        if (mReplayExecutor == null) {
+            mReplayExecutor = new ThreadPoolExecutor(0, 1, REPLAY_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread thread = new Thread(r, THREAD_NAME);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mReplayExecutor;
+    }
+
+    // Arguments are taken from the message if given, which must only have immutable ones by now
+    private void write(@Level int level,
+                       @NonNull String tag,
+                       @NonNull String message,
+                       @Nullable BunyanMessage arguments,
+                       @Nullable Throwable t) {
+        long timestamp = System.currentTimeMillis();
+        long sequence = mNextSequence.getAndIncrement();
+        Slot slot = mSlots[(int) sequence & mMask];
+        synchronized (slot) {
+            if (slot.sequence > sequence) {
+                // Lapped by a writer that claimed the same slot later and got here first, so this event is already
+                // overwritten
+                return;
+            }
+
+            slot.sequence = sequence;
+            slot.level = level;
+            slot.timestamp = timestamp;
+            slot.tag = tag;
+            slot.message = message;
+            int argCount = arguments != null ? arguments.getArgumentCount() : 0;
+            for (int i = 0; i < argCount; i++) {
+                slot.args[i] = arguments.getArgument(i);
+            }
+            for (int i = argCount; i < slot.argCount; i++) {
+                slot.args[i] = null;
+            }
+            slot.argCount = argCount;
+            slot.throwable = t;
+        }
+    }
+
+    // Copies an event, returning false if it has been overwritten or not written yet
+    private boolean read(long sequence, @NonNull Event event) {
+        Slot slot = mSlots[(int) sequence & mMask];
+        synchronized (slot) {
+            if (slot.sequence != sequence) {
+                return false;
+            }
+
+            event.level = slot.level;
+            event.timestamp = slot.timestamp;
+            event.tag = slot.tag;
+            event.message = slot.message;
+            event.argCount = slot.argCount;
+            System.arraycopy(slot.args, 0, event.args, 0, event.argCount);
+            event.throwable = slot.throwable;
+            return true;
+        }
+    }
+
+    private static char getLevelChar(@Level int level) {
+        switch (level) {
+            case Log.VERBOSE:
+                return 'V';
+            case Log.DEBUG:
+                return 'D';
+            case Log.INFO:
+                return 'I';
+            case Log.WARN:
+                return 'W';
+            case Log.ERROR:
+                return 'E';
+            case Log.ASSERT:
+                return 'A';
+            default:
+                return '?';
+        }
+    }
+
+    // Guarded by its own lock
+    private static final class Slot {
+
+        long sequence = EMPTY;
+
+        int level;
+
+        long timestamp;
+
+        String tag;
+
+        String message;
+
+        final Object[] args = new Object[MAX_ARGUMENTS];
+
+        int argCount;
+
+        Throwable throwable;
+    }
+
+    private static final class Event {
+
+        int level;
+
+        long timestamp;
+
+        String tag;
+
+        // Pattern if there are arguments, otherwise the formatted message
+        String message;
+
+        final Object[] args = new Object[MAX_ARGUMENTS];
+
+        int argCount;
+
+        Throwable throwable;
+
+        @NonNull
+        String getMessage() {
+            return argCount > 0 ? MessageFormatter.formatArray(message, args, argCount) : message;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.oriley.bunyan;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import me.oriley.bunyan.Bunyan.Level;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Encoded tags for a single appender's tag pattern, for patterns whose output depends only on level and logger.
+ *
+ * Keyed on the logger class where there is one (as %n differs between a class and a name logger of the same name),
+ * otherwise the logger name. Once full, tags for new loggers are simply encoded on every call.
+ */
+final class BunyanTagCache {
+
+    private static final int MAX_LOGGERS = 512;
+    private static final int LEVEL_COUNT = Log.ASSERT + 1;
+
+    @NonNull
+    private final ConcurrentHashMap<Object, String[]> mTags = new ConcurrentHashMap<>();
+
+
+    @Nullable
+    String get(@Level int level, @NonNull String loggerName, @Nullable Class loggerClass) {
+        String[] tags = mTags.get(loggerClass != null ? loggerClass : loggerName);
+        return tags != null && level >= 0 && level < LEVEL_COUNT ? tags[level] : null;
+    }
+
+    void put(@Level int level, @NonNull String loggerName, @Nullable Class loggerClass, @NonNull String tag) {
+        if (level < 0 || level >= LEVEL_COUNT) {
+            return;
+        }
+
+        Object key = loggerClass != null ? loggerClass : loggerName;
+        String[] tags = mTags.get(key);
+        if (tags == null) {
+            if (mTags.size() >= MAX_LOGGERS) {
+                return;
+            }
+
+            tags = new String[LEVEL_COUNT];
+            String[] existing = mTags.putIfAbsent(key, tags);
+            if (existing != null) {
+                tags = existing;
+            }
+        }
+
+        // Racing writers will store equal tags, so no need to synchronise
+        tags[level] = tag;
+    }
+}
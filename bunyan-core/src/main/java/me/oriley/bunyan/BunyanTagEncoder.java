@@ -22,70 +22,183 @@ import android.support.annotation.Nullable;
 import android.util.Log;
 import me.oriley.bunyan.Bunyan.Level;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 @SuppressWarnings("WeakerAccess")
 public final class BunyanTagEncoder {
 
     private static final String BUNYAN_CORE_LOGGER = BunyanCoreLogger.class.getName();
+    private static final String BUNYAN_EVENT_BUILDER = BunyanEventBuilder.class.getName();
+
+    private static final int BUILDER_CAPACITY = 64;
+    private static final int MAX_BUILDER_CAPACITY = 256;
 
-    private static final String NAME_SHORT = "%n";
-    private static final String NAME_LONG = "%N";
-    private static final String METHOD = "%m";
-    private static final String THREAD_IF_NOT_MAIN = "%t";
-    private static final String THREAD_ALWAYS = "%T";
-    private static final String LEVEL = "%l";
+    // Patterns are normally a handful of constants, so this is only reached if they're built at runtime
+    private static final int MAX_TEMPLATES = 64;
+
+    @NonNull
+    private final ThreadLocal<StringBuilder> mBuilder = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(BUILDER_CAPACITY);
+        }
+    };
+
+    // Templates for patterns passed to the public encodeTag(), appenders keep their own
+    @NonNull
+    private final ConcurrentHashMap<String, BunyanTagTemplate> mTemplates = new ConcurrentHashMap<>();
 
     @NonNull
     public String encodeTag(@NonNull String pattern,
                             @Level int level,
                             @NonNull String loggerName,
                             @Nullable Class loggerClass) {
-        StringBuilder tagBuilder = new StringBuilder(pattern);
+        BunyanTagTemplate template = getTemplate(pattern);
+        StackTraceElement caller = template.usesCaller ? findCaller() : null;
+        String methodName = caller != null ? caller.getMethodName() : null;
+        int lineNumber = caller != null ? caller.getLineNumber() : 0;
+        String threadName = template.usesThreadName ? getThreadName() : null;
+        boolean mainThread = template.usesMainThread && Looper.myLooper() == Looper.getMainLooper();
+        return encodeTag(template, level, loggerName, loggerClass, threadName, mainThread, methodName, lineNumber,
+                BunyanMdc.getSnapshot());
+    }
 
-        int index = tagBuilder.indexOf(NAME_SHORT);
-        if (index >= 0) {
-            tagBuilder.replace(index, index + NAME_SHORT.length(), getTagName(loggerName, loggerClass, true));
+    @NonNull
+    String encodeTag(@NonNull BunyanAppender appender,
+                     @Level int level,
+                     @NonNull String loggerName,
+                     @Nullable Class loggerClass,
+                     @Nullable String threadName,
+                     boolean mainThread,
+                     @Nullable String methodName,
+                     int lineNumber,
+                     @NonNull BunyanMdc.Snapshot mdc) {
+        BunyanTagTemplate template = appender.getTagTemplate();
+        BunyanTagCache cache = appender.getTagCache();
+        if (cache == null) {
+            return encodeTag(template, level, loggerName, loggerClass, threadName, mainThread, methodName,
+                    lineNumber, mdc);
         }
 
-        index = tagBuilder.indexOf(NAME_LONG);
-        if (index >= 0) {
-            tagBuilder.replace(index, index + NAME_LONG.length(), getTagName(loggerName, loggerClass, false));
+        String tag = cache.get(level, loggerName, loggerClass);
+        if (tag == null) {
+            tag = encodeTag(template, level, loggerName, loggerClass, threadName, mainThread, methodName,
+                    lineNumber, mdc);
+            cache.put(level, loggerName, loggerClass, tag);
         }
+        return tag;
+    }
 
-        index = tagBuilder.indexOf(METHOD);
-        if (index >= 0) {
-            String methodName = getMethodName();
-            tagBuilder.replace(index, index + METHOD.length(), methodName != null ? methodName : "");
+    @NonNull
+    private BunyanTagTemplate getTemplate(@NonNull String pattern) {
+        BunyanTagTemplate template = mTemplates.get(pattern);
+        if (template == null) {
+            template = BunyanTagTemplate.compile(pattern);
+            if (mTemplates.size() >= MAX_TEMPLATES) {
+                mTemplates.clear();
+            }
+            mTemplates.put(pattern, template);
         }
+        return template;
+    }
 
-        index = tagBuilder.indexOf(THREAD_ALWAYS);
-        if (index >= 0) {
-            tagBuilder.replace(index, index + THREAD_ALWAYS.length(), getThreadName());
+    // Caller details are passed in rather than looked up, as async events are encoded away from the calling thread
+    @NonNull
+    String encodeTag(@NonNull BunyanTagTemplate template,
+                     @Level int level,
+                     @NonNull String loggerName,
+                     @Nullable Class loggerClass,
+                     @Nullable String threadName,
+                     boolean mainThread,
+                     @Nullable String methodName,
+                     int lineNumber,
+                     @NonNull BunyanMdc.Snapshot mdc) {
+        int[] tokens = template.tokens;
+        if (tokens.length == 0) {
+            return template.pattern;
         }
 
-        index = tagBuilder.indexOf(THREAD_IF_NOT_MAIN);
-        if (index >= 0) {
-            String threadName = Looper.myLooper() != Looper.getMainLooper() ? getThreadName() : "";
-            tagBuilder.replace(index, index + THREAD_IF_NOT_MAIN.length(), threadName);
+        StringBuilder tagBuilder = mBuilder.get();
+        if (tagBuilder.capacity() > MAX_BUILDER_CAPACITY) {
+            tagBuilder = new StringBuilder(BUILDER_CAPACITY);
+            mBuilder.set(tagBuilder);
         }
-
-        index = tagBuilder.indexOf(LEVEL);
-        if (index >= 0) {
-            tagBuilder.replace(index, index + LEVEL.length(), getLevelString(level));
+        tagBuilder.setLength(0);
+
+        String[] literals = template.literals;
+        for (int i = 0; i < tokens.length; i++) {
+            tagBuilder.append(literals[i]);
+            switch (tokens[i]) {
+                case BunyanTagTemplate.NAME_SHORT:
+                    appendTagName(tagBuilder, loggerName, loggerClass, true);
+                    break;
+                case BunyanTagTemplate.NAME_LONG:
+                    appendTagName(tagBuilder, loggerName, loggerClass, false);
+                    break;
+                case BunyanTagTemplate.METHOD:
+                    if (methodName != null) {
+                        tagBuilder.append(methodName);
+                    }
+                    break;
+                case BunyanTagTemplate.LINE:
+                    if (lineNumber > 0) {
+                        tagBuilder.append(lineNumber);
+                    }
+                    break;
+                case BunyanTagTemplate.THREAD_ALWAYS:
+                    if (threadName != null) {
+                        tagBuilder.append(threadName);
+                    }
+                    break;
+                case BunyanTagTemplate.THREAD_IF_NOT_MAIN:
+                    if (threadName != null && !mainThread) {
+                        tagBuilder.append(threadName);
+                    }
+                    break;
+                case BunyanTagTemplate.LEVEL:
+                    tagBuilder.append(getLevelString(level));
+                    break;
+                case BunyanTagTemplate.MDC:
+                    String value = mdc.get(template.mdcKeys[i]);
+                    if (value != null) {
+                        tagBuilder.append(value);
+                    }
+                    break;
+            }
         }
+        tagBuilder.append(literals[tokens.length]);
 
         return tagBuilder.toString();
     }
 
     @Nullable
     protected final String getMethodName() {
+        BunyanCallSite.Frame frame = BunyanCallSite.takeFrame();
+        if (frame != null) {
+            return frame.methodName;
+        }
+
+        StackTraceElement caller = findCaller();
+        return caller != null ? caller.getMethodName() : null;
+    }
+
+    /*
+     * Captures the whole stack with a Throwable (which skips the checks Thread.getStackTrace() makes, but not the
+     * capture itself, as there's no partial stack walk on Android) and returns the first frame after the logger.
+     * Bunyan only calls this once per event, however many appenders use it, and not at all for events whose call was
+     * marked with BunyanCallSite at build time.
+     */
+    @Nullable
+    StackTraceElement findCaller() {
         boolean foundLocalClass = false;
-        StackTraceElement[] elements = Thread.currentThread().getStackTrace();
-        for (int i = 2; i < elements.length; i++) {
+        StackTraceElement[] elements = new Throwable().getStackTrace();
+        for (int i = 1; i < elements.length; i++) {
             StackTraceElement element = elements[i];
-            if (BUNYAN_CORE_LOGGER.equals(element.getClassName())) {
+            String className = element.getClassName();
+            if (BUNYAN_CORE_LOGGER.equals(className) || BUNYAN_EVENT_BUILDER.equals(className)) {
                 foundLocalClass = true;
             } else if (foundLocalClass) {
-                return element.getMethodName();
+                return element;
             }
         }
 
@@ -118,6 +231,18 @@ public final class BunyanTagEncoder {
         }
     }
 
+    private void appendTagName(@NonNull StringBuilder builder,
+                               @NonNull String loggerName,
+                               @Nullable Class c,
+                               boolean shortName) {
+        if (c == null) {
+            builder.append(loggerName);
+        } else {
+            String className = c.getName();
+            builder.append(className, shortName ? className.lastIndexOf('.') + 1 : 0, className.length());
+        }
+    }
+
     @NonNull
     protected String getTagName(@NonNull String loggerName, @Nullable Class c, boolean shortName) {
         if (c == null) {
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.oriley.bunyan;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * A tag pattern split into literal segments and token slots, so it only needs to be parsed once per appender.
+ *
+ * As with the original string replacement, only the first occurrence of each token is substituted, other than MDC
+ * values (%X{key}, see BunyanMdc), which can appear any number of times. Also records which caller details the
+ * pattern needs, so they are never looked up when unused.
+ */
+final class BunyanTagTemplate {
+
+    static final int NAME_SHORT = 0;
+    static final int NAME_LONG = 1;
+    static final int METHOD = 2;
+    static final int THREAD_ALWAYS = 3;
+    static final int THREAD_IF_NOT_MAIN = 4;
+    static final int LEVEL = 5;
+    static final int LINE = 6;
+    static final int MDC = 7;
+
+    // Indexed by the token constants above, other than MDC
+    private static final String[] TOKENS = {"%n", "%N", "%m", "%T", "%t", "%l", "%L"};
+    private static final int TOKEN_LENGTH = 2;
+
+    private static final String MDC_START = "%X{";
+    private static final char MDC_END = '}';
+
+    @NonNull
+    final String pattern;
+
+    // One more literal than tokens, literals[i] precedes tokens[i]
+    @NonNull
+    final String[] literals;
+
+    @NonNull
+    final int[] tokens;
+
+    // Key for each MDC token, null for the rest
+    @NonNull
+    final String[] mdcKeys;
+
+    // Method name or line number, which come from the same lookup
+    final boolean usesCaller;
+
+    final boolean usesThreadName;
+
+    final boolean usesMainThread;
+
+    final boolean usesMdc;
+
+
+    private BunyanTagTemplate(@NonNull String pattern,
+                              @NonNull String[] literals,
+                              @NonNull int[] tokens,
+                              @NonNull String[] mdcKeys) {
+        this.pattern = pattern;
+        this.literals = literals;
+        this.tokens = tokens;
+        this.mdcKeys = mdcKeys;
+
+        boolean caller = false;
+        boolean thread = false;
+        boolean mainThread = false;
+        boolean mdc = false;
+        for (int token : tokens) {
+            caller |= token == METHOD || token == LINE;
+            thread |= token == THREAD_ALWAYS || token == THREAD_IF_NOT_MAIN;
+            mainThread |= token == THREAD_IF_NOT_MAIN;
+            mdc |= token == MDC;
+        }
+
+        usesCaller = caller;
+        usesThreadName = thread;
+        usesMainThread = mainThread;
+        usesMdc = mdc;
+    }
+
+
+    @NonNull
+    static BunyanTagTemplate compile(@NonNull String pattern) {
+        // Every candidate token as {position, token, length}, in pattern order
+        List<int[]> candidates = new ArrayList<>();
+        for (int token = 0; token < TOKENS.length; token++) {
+            int position = pattern.indexOf(TOKENS[token]);
+            if (position >= 0) {
+                candidates.add(new int[]{position, token, TOKEN_LENGTH});
+            }
+        }
+
+        int mdcStart = pattern.indexOf(MDC_START);
+        while (mdcStart >= 0) {
+            int mdcEnd = pattern.indexOf(MDC_END, mdcStart + MDC_START.length());
+            if (mdcEnd < 0) {
+                break;
+            }
+            candidates.add(new int[]{mdcStart, MDC, mdcEnd + 1 - mdcStart});
+            mdcStart = pattern.indexOf(MDC_START, mdcEnd + 1);
+        }
+
+        Collections.sort(candidates, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] lhs, int[] rhs) {
+                return lhs[0] < rhs[0] ? -1 : lhs[0] == rhs[0] ? 0 : 1;
+            }
+        });
+
+        int[] tokens = new int[candidates.size()];
+        String[] mdcKeys = new String[candidates.size()];
+        String[] literals = new String[candidates.size() + 1];
+
+        int start = 0;
+        int count = 0;
+        for (int[] candidate : candidates) {
+            int position = candidate[0];
+            if (position < start) {
+                // Overlapping tokens (i.e. "%%nl") are left as literal text
+                continue;
+            }
+
+            literals[count] = pattern.substring(start, position);
+            if (candidate[1] == MDC) {
+                mdcKeys[count] = pattern.substring(position + MDC_START.length(), position + candidate[2] - 1);
+            }
+            tokens[count++] = candidate[1];
+            start = position + candidate[2];
+        }
+        literals[count] = pattern.substring(start);
+
+        if (count < candidates.size()) {
+            int[] trimmedTokens = new int[count];
+            String[] trimmedMdcKeys = new String[count];
+            String[] trimmedLiterals = new String[count + 1];
+            System.arraycopy(tokens, 0, trimmedTokens, 0, count);
+            System.arraycopy(mdcKeys, 0, trimmedMdcKeys, 0, count);
+            System.arraycopy(literals, 0, trimmedLiterals, 0, count + 1);
+            tokens = trimmedTokens;
+            mdcKeys = trimmedMdcKeys;
+            literals = trimmedLiterals;
+        }
+
+        return new BunyanTagTemplate(pattern, literals, tokens, mdcKeys);
+    }
+
+    // Whether encoded tags depend only on the pattern, level and logger, and so can be cached
+    boolean isStatic() {
+        return !usesCaller && !usesThreadName && !usesMdc;
+    }
+}
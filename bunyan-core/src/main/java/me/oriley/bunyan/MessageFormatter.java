@@ -5,91 +5,282 @@ import android.support.annotation.Nullable;
 
 import java.util.Arrays;
 
+/*
+ * SLF4J style message formatting.
+ *
+ * Patterns are parsed once into a MessagePattern and cached, and messages are built into a per thread buffer, which
+ * is reused unless it has grown beyond MAX_RETAINED_CAPACITY. A Throwable passed as the last argument is not part of
+ * the message, callers should check for one with getThrowable and exclude it from the argument count.
+ */
 final class MessageFormatter {
 
-    private static final String PLACEHOLDER = "{}";
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int MAX_RETAINED_CAPACITY = 4096;
 
     @NonNull
-    static FormattingPair formatArray(@Nullable String messagePattern, @Nullable Object[] argArray) {
-        Throwable throwable = null;
-        Object[] args = argArray;
+    private static final ThreadLocal<Buffer> sBuffer = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
+
+    @NonNull
+    private static final MessagePatternCache sPatternCache = new MessagePatternCache();
 
-        if (argArray != null && argArray.length != 0) {
-            Object lastEntry = argArray[argArray.length - 1];
+    @Nullable
+    static Throwable getThrowable(@Nullable Object lastArg) {
+        return lastArg instanceof Throwable ? (Throwable) lastArg : null;
+    }
 
-            if (lastEntry instanceof Throwable) {
-                throwable = (Throwable) lastEntry;
+    @Nullable
+    static String formatArray(@Nullable String messagePattern, @Nullable Object[] argArray, int argCount) {
+        return formatArguments(messagePattern, argArray, argCount, null, null, null);
+    }
 
-                // Trim the array
-                int trimmedLength = argArray.length - 1;
-                args = new Object[trimmedLength];
-                System.arraycopy(argArray, 0, args, 0, trimmedLength);
-            }
+    // Fixed arity variant, so common calls don't need an argument array
+    @Nullable
+    static String format(@Nullable String messagePattern,
+                         int argCount,
+                         @Nullable Object arg1,
+                         @Nullable Object arg2,
+                         @Nullable Object arg3) {
+        return formatArguments(messagePattern, null, argCount, arg1, arg2, arg3);
+    }
+
+    @Nullable
+    static String format(@Nullable String messagePattern, boolean arg) {
+        if (messagePattern == null) {
+            return null;
         }
 
-        return formatArray(messagePattern, args, throwable);
+        MessagePattern pattern = sPatternCache.get(messagePattern);
+        if (pattern.placeholderCount == 0) {
+            return formatLiteral(pattern);
+        }
+
+        Buffer buffer = acquireBuffer();
+        pattern.appendLiteral(buffer.builder, 0);
+        buffer.builder.append(arg);
+        return finish(buffer, pattern, 1);
     }
 
-    @NonNull
-    private static FormattingPair formatArray(@Nullable String messagePattern, @Nullable Object[] arguments, @Nullable Throwable t) {
+    @Nullable
+    static String format(@Nullable String messagePattern, char arg) {
         if (messagePattern == null) {
-            return new FormattingPair(null, t);
-        } else if (arguments == null) {
-            return new FormattingPair(messagePattern);
-        } else {
-            int i = 0;
-            StringBuilder sbuf = new StringBuilder(messagePattern.length() + 50);
-
-            int placeholderCount = 0;
-            while (i < messagePattern.length()) {
-                int j = messagePattern.indexOf(PLACEHOLDER, i);
-                if (j > 0) {
-                    placeholderCount++;
-                    i = j + 1;
-                } else {
-                    break;
+            return null;
+        }
+
+        MessagePattern pattern = sPatternCache.get(messagePattern);
+        if (pattern.placeholderCount == 0) {
+            return formatLiteral(pattern);
+        }
+
+        Buffer buffer = acquireBuffer();
+        pattern.appendLiteral(buffer.builder, 0);
+        buffer.builder.append(arg);
+        return finish(buffer, pattern, 1);
+    }
+
+    @Nullable
+    static String format(@Nullable String messagePattern, long arg) {
+        if (messagePattern == null) {
+            return null;
+        }
+
+        MessagePattern pattern = sPatternCache.get(messagePattern);
+        if (pattern.placeholderCount == 0) {
+            return formatLiteral(pattern);
+        }
+
+        Buffer buffer = acquireBuffer();
+        pattern.appendLiteral(buffer.builder, 0);
+        buffer.builder.append(arg);
+        return finish(buffer, pattern, 1);
+    }
+
+    @Nullable
+    static String format(@Nullable String messagePattern, float arg) {
+        if (messagePattern == null) {
+            return null;
+        }
+
+        MessagePattern pattern = sPatternCache.get(messagePattern);
+        if (pattern.placeholderCount == 0) {
+            return formatLiteral(pattern);
+        }
+
+        Buffer buffer = acquireBuffer();
+        pattern.appendLiteral(buffer.builder, 0);
+        buffer.builder.append(arg);
+        return finish(buffer, pattern, 1);
+    }
+
+    @Nullable
+    static String format(@Nullable String messagePattern, double arg) {
+        if (messagePattern == null) {
+            return null;
+        }
+
+        MessagePattern pattern = sPatternCache.get(messagePattern);
+        if (pattern.placeholderCount == 0) {
+            return formatLiteral(pattern);
+        }
+
+        Buffer buffer = acquireBuffer();
+        pattern.appendLiteral(buffer.builder, 0);
+        buffer.builder.append(arg);
+        return finish(buffer, pattern, 1);
+    }
+
+    @Nullable
+    static String format(@Nullable String messagePattern, long arg1, long arg2) {
+        if (messagePattern == null) {
+            return null;
+        }
+
+        MessagePattern pattern = sPatternCache.get(messagePattern);
+        if (pattern.placeholderCount == 0) {
+            return formatLiteral(pattern);
+        }
+
+        Buffer buffer = acquireBuffer();
+        StringBuilder sbuf = buffer.builder;
+        pattern.appendLiteral(sbuf, 0);
+        if (pattern.expandsArguments) {
+            // Same expansion as an array passed as the only argument, without boxing
+            sbuf.append('[').append(arg1).append(", ").append(arg2).append(']');
+            return finish(buffer, pattern, 1);
+        }
+
+        sbuf.append(arg1);
+        if (pattern.placeholderCount > 1) {
+            pattern.appendLiteral(sbuf, 1);
+            sbuf.append(arg2);
+        }
+        return finish(buffer, pattern, 2);
+    }
+
+    static void setPatternCacheCounting(boolean counting) {
+        sPatternCache.setCounting(counting);
+    }
+
+    static long getPatternCacheHitCount() {
+        return sPatternCache.getHitCount();
+    }
+
+    static long getPatternCacheMissCount() {
+        return sPatternCache.getMissCount();
+    }
+
+    // Arguments are taken from argArray if present, otherwise from arg1 to arg3
+    @Nullable
+    private static String formatArguments(@Nullable String messagePattern,
+                                          @Nullable Object[] argArray,
+                                          int argCount,
+                                          @Nullable Object arg1,
+                                          @Nullable Object arg2,
+                                          @Nullable Object arg3) {
+        if (messagePattern == null || argCount <= 0) {
+            return messagePattern;
+        }
+
+        MessagePattern pattern = sPatternCache.get(messagePattern);
+        if (pattern.placeholderCount == 0) {
+            return formatLiteral(pattern);
+        }
+
+        Buffer buffer = acquireBuffer();
+        try {
+            StringBuilder sbuf = buffer.builder;
+            if (argCount > 1 && pattern.expandsArguments) {
+                // Passed an array as the only argument, so wrap it for correct expansion
+                Object[] arguments = new Object[argCount];
+                for (int L = 0; L < argCount; L++) {
+                    arguments[L] = getArgument(argArray, L, arg1, arg2, arg3);
                 }
+                pattern.appendLiteral(sbuf, 0);
+                deeplyAppendParameter(sbuf, arguments);
+                return finish(buffer, pattern, 1);
             }
 
-            if (placeholderCount == 1 && arguments.length > 1) {
-                // Passed an array as the only argument, so wrap it for correct expansion
-                arguments = new Object[] { arguments };
+            int count = Math.min(argCount, pattern.placeholderCount);
+            for (int L = 0; L < count; L++) {
+                pattern.appendLiteral(sbuf, L);
+                deeplyAppendParameter(sbuf, getArgument(argArray, L, arg1, arg2, arg3));
             }
+            return finish(buffer, pattern, argCount);
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
 
-            i = 0;
-            for (int L = 0; L < arguments.length; ++L) {
-                int j = messagePattern.indexOf(PLACEHOLDER, i);
-                if (j == -1) {
-                    if (i == 0) {
-                        return new FormattingPair(messagePattern, t);
-                    }
+    // Message for a pattern without placeholders, whatever the arguments
+    @NonNull
+    private static String formatLiteral(@NonNull MessagePattern pattern) {
+        if (pattern.verbatim) {
+            return pattern.pattern;
+        }
 
-                    sbuf.append(messagePattern, i, messagePattern.length());
-                    return new FormattingPair(sbuf.toString(), t);
-                }
+        Buffer buffer = acquireBuffer();
+        pattern.appendLiteral(buffer.builder, 0);
+        return finish(buffer, pattern, -1);
+    }
 
-                // Check whether character is escape delimiter
-                if (j != 0 && messagePattern.charAt(j - 1) == 92) {
-                    // Check whether it is double escaped
-                    if (j >= 2 && messagePattern.charAt(j - 2) == 92) {
-                        --L;
-                        sbuf.append(messagePattern, i, j - 1);
-                        sbuf.append('{');
-                        i = j + 1;
-                    } else {
-                        sbuf.append(messagePattern, i, j - 1);
-                        deeplyAppendParameter(sbuf, arguments[L]);
-                        i = j + 2;
-                    }
-                } else {
-                    sbuf.append(messagePattern, i, j);
-                    deeplyAppendParameter(sbuf, arguments[L]);
-                    i = j + 2;
-                }
-            }
+    // Appends whatever follows the substituted arguments (see MessagePattern.appendRemainder) and releases the buffer
+    @NonNull
+    private static String finish(@NonNull Buffer buffer, @NonNull MessagePattern pattern, int argCount) {
+        if (argCount > 0) {
+            pattern.appendRemainder(buffer.builder, argCount);
+        }
+
+        String message = buffer.builder.toString();
+        releaseBuffer(buffer);
+        return message;
+    }
+
+    @NonNull
+    private static Buffer acquireBuffer() {
+        Buffer buffer = sBuffer.get();
+        if (buffer.inUse) {
+            // Formatting from within an argument's toString(), so leave the outer message alone
+            buffer = new Buffer();
+        }
 
-            sbuf.append(messagePattern, i, messagePattern.length());
-            return new FormattingPair(sbuf.toString(), t);
+        buffer.inUse = true;
+        return buffer;
+    }
+
+    private static void releaseBuffer(@NonNull Buffer buffer) {
+        if (!buffer.inUse) {
+            return;
+        }
+
+        if (buffer.builder.capacity() > MAX_RETAINED_CAPACITY) {
+            buffer.builder = new StringBuilder(INITIAL_CAPACITY);
+        } else {
+            buffer.builder.setLength(0);
+        }
+        buffer.inUse = false;
+    }
+
+    @Nullable
+    private static Object getArgument(@Nullable Object[] argArray,
+                                      int index,
+                                      @Nullable Object arg1,
+                                      @Nullable Object arg2,
+                                      @Nullable Object arg3) {
+        if (argArray != null) {
+            return argArray[index];
+        }
+
+        switch (index) {
+            case 0:
+                return arg1;
+            case 1:
+                return arg2;
+            default:
+                return arg3;
         }
     }
 
@@ -122,14 +313,27 @@ final class MessageFormatter {
     }
 
     private static void safeObjectAppend(@NonNull StringBuilder sbuf, @NonNull Object o) {
+        sbuf.append(safeToString(o));
+    }
+
+    // Never throws, a bad toString() is reported and replaced by a marker so the log call itself can't fail
+    @NonNull
+    static String safeToString(@NonNull Object o) {
         try {
-            String t = o.toString();
-            sbuf.append(t);
+            return String.valueOf(o.toString());
         } catch (Throwable t) {
             System.err.println("Bunyan: Failed toString() invocation on an object of type [" + o.getClass().getName() + "]");
             System.err.println("Reported exception:");
             t.printStackTrace();
-            sbuf.append("[FAILED toString()]");
+            return "[FAILED toString()]";
         }
     }
-}
+
+    private static final class Buffer {
+
+        @NonNull
+        StringBuilder builder = new StringBuilder(INITIAL_CAPACITY);
+
+        boolean inUse;
+    }
+}
\ No newline at end of file
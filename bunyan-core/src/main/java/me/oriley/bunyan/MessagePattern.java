@@ -0,0 +1,142 @@
+package me.oriley.bunyan;
+
+import android.support.annotation.NonNull;
+
+/*
+ * A message pattern parsed into the literal text around each placeholder that takes an argument, so substitution is
+ * a straight copy loop.
+ *
+ * Literal k is the text preceding argument k (the last literal follows the final placeholder). It is stored as one or
+ * more offset ranges into the pattern, with a '{' between consecutive ranges where a double escaped placeholder was.
+ */
+final class MessagePattern {
+
+    private static final String PLACEHOLDER = "{}";
+    private static final char ESCAPE = '\\';
+
+    @NonNull
+    final String pattern;
+
+    final int placeholderCount;
+
+    // Historical quirk: several arguments for a single placeholder are expanded as an array
+    final boolean expandsArguments;
+
+    // Pattern is unchanged if no arguments are substituted
+    final boolean verbatim;
+
+    // Literal k covers ranges literalRanges[k] until literalRanges[k + 1]
+    @NonNull
+    private final int[] mLiteralRanges;
+
+    @NonNull
+    private final int[] mRangeStarts;
+
+    @NonNull
+    private final int[] mRangeEnds;
+
+    // Index following each placeholder
+    @NonNull
+    private final int[] mPlaceholderEnds;
+
+
+    private MessagePattern(@NonNull String pattern,
+                           int placeholderCount,
+                           @NonNull int[] literalRanges,
+                           @NonNull int[] rangeStarts,
+                           @NonNull int[] rangeEnds,
+                           @NonNull int[] placeholderEnds) {
+        this.pattern = pattern;
+        this.placeholderCount = placeholderCount;
+        mLiteralRanges = literalRanges;
+        mRangeStarts = rangeStarts;
+        mRangeEnds = rangeEnds;
+        mPlaceholderEnds = placeholderEnds;
+
+        // A placeholder at the very start was never counted, and escapes were not taken into account
+        int first = pattern.indexOf(PLACEHOLDER);
+        expandsArguments = first > 0 && pattern.indexOf(PLACEHOLDER, first + 2) < 0;
+        verbatim = placeholderCount == 0 && rangeStarts.length == 1;
+    }
+
+
+    @NonNull
+    static MessagePattern parse(@NonNull String pattern) {
+        // Every range ends at a placeholder or the end of the pattern, so this is more than enough
+        int maxRanges = 1;
+        for (int j = pattern.indexOf(PLACEHOLDER); j >= 0; j = pattern.indexOf(PLACEHOLDER, j + 2)) {
+            maxRanges++;
+        }
+
+        int[] rangeStarts = new int[maxRanges];
+        int[] rangeEnds = new int[maxRanges];
+        int[] literalRanges = new int[maxRanges + 1];
+        int[] placeholderEnds = new int[maxRanges];
+        int rangeCount = 0;
+        int placeholderCount = 0;
+
+        int i = 0;
+        while (true) {
+            int j = pattern.indexOf(PLACEHOLDER, i);
+            if (j == -1) {
+                rangeStarts[rangeCount] = i;
+                rangeEnds[rangeCount++] = pattern.length();
+                break;
+            }
+
+            if (j != 0 && pattern.charAt(j - 1) == ESCAPE) {
+                rangeStarts[rangeCount] = i;
+                rangeEnds[rangeCount++] = j - 1;
+                if (j >= 2 && pattern.charAt(j - 2) == ESCAPE) {
+                    // Double escaped, doesn't take an argument. Continues the current literal after a '{'
+                    i = j + 1;
+                    continue;
+                }
+            } else {
+                rangeStarts[rangeCount] = i;
+                rangeEnds[rangeCount++] = j;
+            }
+
+            placeholderEnds[placeholderCount++] = j + 2;
+            literalRanges[placeholderCount] = rangeCount;
+            i = j + 2;
+        }
+        literalRanges[placeholderCount + 1] = rangeCount;
+
+        return new MessagePattern(pattern, placeholderCount, trim(literalRanges, placeholderCount + 2),
+                trim(rangeStarts, rangeCount), trim(rangeEnds, rangeCount), trim(placeholderEnds, placeholderCount));
+    }
+
+    void appendLiteral(@NonNull StringBuilder sbuf, int index) {
+        int end = mLiteralRanges[index + 1];
+        for (int range = mLiteralRanges[index]; range < end; range++) {
+            if (range != mLiteralRanges[index]) {
+                sbuf.append('{');
+            }
+            sbuf.append(pattern, mRangeStarts[range], mRangeEnds[range]);
+        }
+    }
+
+    /*
+     * Completes a message once argCount arguments have been substituted. If they filled every placeholder the last
+     * literal is appended as usual, otherwise the rest of the pattern is appended untouched, as it always has been.
+     */
+    void appendRemainder(@NonNull StringBuilder sbuf, int argCount) {
+        if (argCount > placeholderCount) {
+            appendLiteral(sbuf, placeholderCount);
+        } else {
+            sbuf.append(pattern, mPlaceholderEnds[argCount - 1], pattern.length());
+        }
+    }
+
+    @NonNull
+    private static int[] trim(@NonNull int[] array, int length) {
+        if (array.length == length) {
+            return array;
+        }
+
+        int[] trimmed = new int[length];
+        System.arraycopy(array, 0, trimmed, 0, length);
+        return trimmed;
+    }
+}
@@ -0,0 +1,90 @@
+package me.oriley.bunyan;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Parsed message patterns, looked up by identity first (format strings are nearly always constants, so the same
+ * instance is passed every time) and then by equality.
+ *
+ * The identity table is direct mapped and its entries are overwritten on collision. The equality map is emptied once
+ * full, so patterns built at runtime can't keep it full (and keep their strings alive) for good, and the ones that
+ * really are constant are back in after their next use. Patterns without placeholders aren't cached at all, as they
+ * are the usual result of concatenating values into the message, and parsing them is a single scan anyway.
+ *
+ * Hits and misses are only counted once enabled, as every logging thread incrementing the same counters would
+ * contend on them.
+ */
+final class MessagePatternCache {
+
+    private static final int IDENTITY_TABLE_SIZE = 256;
+    private static final int MAX_PATTERNS = 1024;
+
+    // Immutable entries, so racing reads and writes are harmless
+    @NonNull
+    private final MessagePattern[] mIdentityTable = new MessagePattern[IDENTITY_TABLE_SIZE];
+
+    @NonNull
+    private final ConcurrentHashMap<String, MessagePattern> mPatterns = new ConcurrentHashMap<>();
+
+    @NonNull
+    private final AtomicLong mHitCount = new AtomicLong();
+
+    @NonNull
+    private final AtomicLong mMissCount = new AtomicLong();
+
+    private volatile boolean mCounting;
+
+
+    @NonNull
+    MessagePattern get(@NonNull String pattern) {
+        int index = System.identityHashCode(pattern) & (IDENTITY_TABLE_SIZE - 1);
+        MessagePattern messagePattern = mIdentityTable[index];
+        if (messagePattern != null && messagePattern.pattern == pattern) {
+            if (mCounting) {
+                mHitCount.incrementAndGet();
+            }
+            return messagePattern;
+        }
+
+        messagePattern = mPatterns.get(pattern);
+        if (messagePattern != null) {
+            if (mCounting) {
+                mHitCount.incrementAndGet();
+            }
+        } else {
+            if (mCounting) {
+                mMissCount.incrementAndGet();
+            }
+
+            messagePattern = MessagePattern.parse(pattern);
+            if (messagePattern.placeholderCount == 0) {
+                return messagePattern;
+            }
+
+            if (mPatterns.size() >= MAX_PATTERNS) {
+                mPatterns.clear();
+            }
+            mPatterns.putIfAbsent(pattern, messagePattern);
+        }
+
+        if (messagePattern.pattern == pattern) {
+            mIdentityTable[index] = messagePattern;
+        }
+        return messagePattern;
+    }
+
+    void setCounting(boolean counting) {
+        mCounting = counting;
+    }
+
+    long getHitCount() {
+        return mHitCount.get();
+    }
+
+    long getMissCount() {
+        return mMissCount.get();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.oriley.bunyan;
+
+import android.support.annotation.NonNull;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+
+// Collects a stack trace without the StringWriter and buffer copies of Log.getStackTraceString()
+final class StackTraceBuffer extends Writer {
+
+    @NonNull
+    private final StringBuilder mBuilder = new StringBuilder(1024);
+
+    @NonNull
+    private final PrintWriter mPrintWriter = new PrintWriter(this);
+
+
+    @NonNull
+    StringBuilder getBuilder() {
+        return mBuilder;
+    }
+
+    @NonNull
+    PrintWriter getPrintWriter() {
+        return mPrintWriter;
+    }
+
+    @Override
+    public void write(@NonNull char[] buffer, int offset, int count) {
+        mBuilder.append(buffer, offset, count);
+    }
+
+    @Override
+    public void write(@NonNull String s, int offset, int count) {
+        mBuilder.append(s, offset, offset + count);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -25,51 +25,378 @@ import com.crashlytics.android.Crashlytics;
 
 import me.oriley.bunyan.Bunyan.Level;
 import me.oriley.bunyan.BunyanAppender;
+import me.oriley.bunyan.BunyanCrashHandler;
+import me.oriley.bunyan.BunyanMessage;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Forwards events to the Crashlytics log. Events logged before Crashlytics is initialised are held in a bounded queue
+ * and forwarded once it is, rather than dropped.
+ *
+ * In buffered mode events are forwarded on a background thread instead, several to a Crashlytics.log() call. The thread
+ * is started when events are queued and stops once it has been idle for a few seconds. Each tag can only forward a
+ * burst of BURST_SIZE events, refilled at EVENTS_PER_SECOND, with a count of any suppressed events logged once the tag
+ * is allowed through again. Events at ERROR and above, or with a throwable, are never suppressed. Add the appender to
+ * BunyanCrashHandler to have anything still queued forwarded, and so included in the crash report, on an uncaught
+ * exception.
+ */
 @SuppressWarnings({"WeakerAccess", "unused"})
-public class BunyanCrashlyticsAppender extends BunyanAppender {
+public class BunyanCrashlyticsAppender extends BunyanAppender implements BunyanCrashHandler.Listener {
+
+    private static final String TAG = BunyanCrashlyticsAppender.class.getSimpleName();
+    private static final String THREAD_NAME = "Bunyan-Crashlytics";
+
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int PRE_INIT_CAPACITY = 256;
+    private static final int BURST_SIZE = 20;
+    private static final int EVENTS_PER_SECOND = 5;
+    private static final int MAX_BATCH_LENGTH = 4096;
+    private static final long KEEP_ALIVE_SECONDS = 5;
+
+    // Only ever goes from false to true, so it needn't be checked again once set
+    private static volatile boolean sInitialised;
+
+    // Buffered mode only
+    @Nullable
+    private final BlockingQueue<Event> mQueue;
+
+    // Guarded by itself
+    @NonNull
+    private final ArrayDeque<Event> mPreInitQueue = new ArrayDeque<>();
+
+    @NonNull
+    private final AtomicInteger mDroppedCount = new AtomicInteger();
+
+    // Held while forwarding queued events, so a flush and the background thread don't interleave them
+    @NonNull
+    private final Object mForwardLock = new Object();
+
+    // Guarded by mForwardLock
+    @NonNull
+    private final Map<String, TokenBucket> mBuckets = new HashMap<>();
+
+    // Lines not yet passed to Crashlytics, only set while forwarding queued events
+    @Nullable
+    private StringBuilder mBatch;
+
+    // Set while a forward is queued, so a burst of events is forwarded together
+    @NonNull
+    private final AtomicBoolean mForwardQueued = new AtomicBoolean();
+
+    @Nullable
+    private ThreadPoolExecutor mExecutor;
+
+    private volatile boolean mHasPreInitEvents;
+
+
+    public BunyanCrashlyticsAppender() {
+        this(false);
+    }
+
+    public BunyanCrashlyticsAppender(boolean buffered) {
+        mQueue = buffered ? new ArrayBlockingQueue<Event>(QUEUE_CAPACITY) : null;
+    }
+
 
     @Override
     public final void logEvent(@Level int level, @NonNull String tag, @NonNull String message, @Nullable Throwable t) {
-        Crashlytics crashlytics = Crashlytics.getInstance();
-        if (crashlytics == null || crashlytics.core == null) {
-            // Not initialised yet, don't attempt
+        if (mQueue != null) {
+            if (!mQueue.offer(new Event(level, tag, message, t))) {
+                mDroppedCount.incrementAndGet();
+            }
+            if (mForwardQueued.compareAndSet(false, true)) {
+                getExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mForwardQueued.set(false);
+                        forwardQueued();
+                    }
+                });
+            }
+        } else if (!isInitialised()) {
+            queuePreInit(new Event(level, tag, message, t));
+        } else {
+            if (mHasPreInitEvents) {
+                forwardPreInit();
+            }
+            logEventInternal(level, tag, message, t);
+        }
+    }
+
+    @Override
+    public final void logEvent(@Level int level,
+                               @NonNull String tag,
+                               @NonNull BunyanMessage message,
+                               @Nullable Throwable t) {
+        // Needed whether it's forwarded now or later, as the message is reused
+        logEvent(level, tag, message.getString(), t);
+    }
+
+    // Forwards any queued events on the calling thread
+    public void flush() {
+        if (mQueue == null || !isInitialised()) {
             return;
         }
 
-        logEventInternal(level, tag, message, t);
+        List<Event> events = new ArrayList<>();
+        synchronized (mForwardLock) {
+            mQueue.drainTo(events);
+            forwardEvents(events);
+        }
+    }
+
+    @Override
+    public void onUncaughtException(@NonNull Thread thread, @NonNull Throwable throwable) {
+        flush();
     }
 
     @CallSuper
     protected void logEventInternal(@Level int level, @NonNull String tag, @NonNull String message, @Nullable Throwable t) {
-        Crashlytics.log(formatLogMessage(level, tag, message));
+        StringBuilder batch = mBatch;
+        if (batch == null) {
+            Crashlytics.log(formatLogMessage(level, tag, message));
+            return;
+        }
+
+        if (batch.length() > 0) {
+            batch.append('\n');
+        }
+        batch.append(getPriorityChar(level)).append('/').append(tag).append(' ').append(message);
+
+        // Anything reported with the throwable should include the lines leading up to it
+        if (t != null || batch.length() >= MAX_BATCH_LENGTH) {
+            forwardBatch();
+        }
+    }
+
+    // Runs on the background thread. Events queued before Crashlytics is initialised wait for the next event or flush()
+    private void forwardQueued() {
+        BlockingQueue<Event> queue = mQueue;
+        if (queue == null) {
+            return;
+        }
+
+        List<Event> events = new ArrayList<>();
+        synchronized (mForwardLock) {
+            queue.drainTo(events);
+            if (isInitialised()) {
+                forwardEvents(events);
+            } else {
+                for (Event event : events) {
+                    queuePreInit(event);
+                }
+            }
+        }
+    }
+
+    // A single thread, started when needed
+    @NonNull
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (mExecutor == null) {
+            mExecutor = new ThreadPoolExecutor(0, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread thread = new Thread(r, THREAD_NAME);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mExecutor;
+    }
+
+    // Called with mForwardLock held, once Crashlytics is initialised
+    private void forwardEvents(@NonNull List<Event> events) {
+        long now = System.nanoTime();
+        mBatch = new StringBuilder();
+        try {
+            if (mHasPreInitEvents) {
+                forwardPreInit();
+            }
+
+            for (Event event : events) {
+                if (event.level >= Log.ERROR || event.throwable != null) {
+                    logEventInternal(event.level, event.tag, event.message, event.throwable);
+                    continue;
+                }
+
+                TokenBucket bucket = getBucket(event.tag);
+                if (bucket.tryAcquire(now)) {
+                    logSuppressedCount(event.tag, bucket);
+                    logEventInternal(event.level, event.tag, event.message, event.throwable);
+                }
+            }
+
+            logSuppressedCounts(now);
+            forwardBatch();
+        } finally {
+            mBatch = null;
+        }
+    }
+
+    private void forwardBatch() {
+        StringBuilder batch = mBatch;
+        if (batch != null && batch.length() > 0) {
+            Crashlytics.log(batch.toString());
+            batch.setLength(0);
+        }
+    }
+
+    private void logSuppressedCounts(long now) {
+        int dropped = mDroppedCount.getAndSet(0);
+        if (dropped > 0) {
+            logEventInternal(Log.WARN, TAG, "Dropped " + dropped + " events, queue full", null);
+        }
+
+        Iterator<Map.Entry<String, TokenBucket>> iterator = mBuckets.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, TokenBucket> entry = iterator.next();
+            TokenBucket bucket = entry.getValue();
+            bucket.refill(now);
+            if (bucket.tokens >= 1) {
+                logSuppressedCount(entry.getKey(), bucket);
+            }
+
+            if (bucket.tokens >= BURST_SIZE) {
+                // Full again, so no different to a new bucket
+                iterator.remove();
+            }
+        }
+    }
+
+    private void logSuppressedCount(@NonNull String tag, @NonNull TokenBucket bucket) {
+        if (bucket.suppressedCount > 0) {
+            logEventInternal(Log.WARN, TAG, "Suppressed " + bucket.suppressedCount + " events from " + tag, null);
+            bucket.suppressedCount = 0;
+        }
+    }
+
+    @NonNull
+    private TokenBucket getBucket(@NonNull String tag) {
+        TokenBucket bucket = mBuckets.get(tag);
+        if (bucket == null) {
+            bucket = new TokenBucket();
+            mBuckets.put(tag, bucket);
+        }
+        return bucket;
+    }
+
+    private void queuePreInit(@NonNull Event event) {
+        synchronized (mPreInitQueue) {
+            if (mPreInitQueue.size() >= PRE_INIT_CAPACITY) {
+                mPreInitQueue.removeFirst();
+                mDroppedCount.incrementAndGet();
+            }
+            mPreInitQueue.addLast(event);
+            mHasPreInitEvents = true;
+        }
+    }
+
+    private void forwardPreInit() {
+        synchronized (mPreInitQueue) {
+            Event event;
+            while ((event = mPreInitQueue.pollFirst()) != null) {
+                logEventInternal(event.level, event.tag, event.message, event.throwable);
+            }
+            mHasPreInitEvents = false;
+        }
+    }
+
+    private static boolean isInitialised() {
+        if (sInitialised) {
+            return true;
+        }
+
+        Crashlytics crashlytics = Crashlytics.getInstance();
+        sInitialised = crashlytics != null && crashlytics.core != null;
+        return sInitialised;
     }
 
     @NonNull
     private static String formatLogMessage(@Level int level, String tag, String msg) {
-        String priorityString;
+        return new StringBuilder(tag.length() + msg.length() + 3)
+                .append(getPriorityChar(level)).append('/').append(tag).append(' ').append(msg)
+                .toString();
+    }
+
+    private static char getPriorityChar(@Level int level) {
         switch (level) {
             case Log.VERBOSE:
-                priorityString = "V";
-                break;
+                return 'V';
             case Log.DEBUG:
-                priorityString = "D";
-                break;
+                return 'D';
             case Log.INFO:
-                priorityString = "I";
-                break;
+                return 'I';
             case Log.WARN:
-                priorityString = "W";
-                break;
+                return 'W';
             case Log.ERROR:
-                priorityString = "E";
-                break;
+                return 'E';
             case Log.ASSERT:
-                priorityString = "A";
-                break;
+                return 'A';
             default:
-                priorityString = "?";
+                return '?';
+        }
+    }
+
+    private static final class Event {
+
+        @Level
+        final int level;
+
+        @NonNull
+        final String tag;
+
+        @NonNull
+        final String message;
+
+        @Nullable
+        final Throwable throwable;
+
+        Event(@Level int level, @NonNull String tag, @NonNull String message, @Nullable Throwable throwable) {
+            this.level = level;
+            this.tag = tag;
+            this.message = message;
+            this.throwable = throwable;
+        }
+    }
+
+    private static final class TokenBucket {
+
+        double tokens = BURST_SIZE;
+
+        long refilledNanos = System.nanoTime();
+
+        int suppressedCount;
+
+        void refill(long now) {
+            tokens = Math.min(BURST_SIZE, tokens + (now - refilledNanos) * EVENTS_PER_SECOND / 1e9);
+            refilledNanos = now;
+        }
+
+        boolean tryAcquire(long now) {
+            refill(now);
+            if (tokens >= 1) {
+                tokens--;
+                return true;
+            }
+
+            suppressedCount++;
+            return false;
         }
-        return priorityString + "/" + tag + " " + msg;
     }
-}
\ No newline at end of file
+}
@@ -24,6 +24,15 @@ import me.oriley.bunyan.Bunyan.Level;
 @SuppressWarnings("unused")
 public class BunyanCrashlyticsExceptionAppender extends BunyanCrashlyticsAppender {
 
+    public BunyanCrashlyticsExceptionAppender() {
+        super();
+    }
+
+    public BunyanCrashlyticsExceptionAppender(boolean buffered) {
+        super(buffered);
+    }
+
+
     @Override
     protected void logEventInternal(@Level int level, @NonNull String tag, @NonNull String message, @Nullable Throwable t) {
         super.logEventInternal(level, tag, message, t);
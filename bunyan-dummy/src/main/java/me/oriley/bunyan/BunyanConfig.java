@@ -31,10 +31,30 @@ public final class BunyanConfig {
         return new HashMap<String, String>();
     }
 
+    static String[] getPackageTrieSegments() {
+        return new String[0];
+    }
+
+    static int[] getPackageTrieChildren() {
+        return new int[0];
+    }
+
+    static String[] getPackageTrieLevels() {
+        return new String[0];
+    }
+
+    static HashMap<String, String> getLoggerDuplicateWindowMap() {
+        return new HashMap<String, String>();
+    }
+
     static HashMap<String, String> getAppenderTagPatternMap() {
         return new HashMap<String, String>();
     }
 
+    static HashMap<String, String> getAppenderThresholdMap() {
+        return new HashMap<String, String>();
+    }
+
     static String getGlobalLevel() {
         return "";
     }
@@ -42,4 +62,24 @@ public final class BunyanConfig {
     static String getGlobalTagPattern() {
         return "";
     }
+
+    static int getGlobalDuplicateWindow() {
+        return 0;
+    }
+
+    static boolean getAsyncEnabled() {
+        return false;
+    }
+
+    static int getAsyncBufferSize() {
+        return 0;
+    }
+
+    static String getAsyncOverflowPolicy() {
+        return "";
+    }
+
+    static String getAsyncOverflowLevel() {
+        return "";
+    }
 }
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.oriley.bunyan.file;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import me.oriley.bunyan.Bunyan.Level;
+import me.oriley.bunyan.BunyanAppender;
+import me.oriley.bunyan.BunyanFields;
+import me.oriley.bunyan.BunyanMdc;
+import me.oriley.bunyan.BunyanMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import static me.oriley.bunyan.file.BunyanFileFormat.*;
+
+/*
+ * Writes events to fixed size segment files in a compact binary format, see BunyanFileFormat. Segments are memory
+ * mapped, so an event is just copied into memory and the OS writes it out, even if the app is killed straight after.
+ *
+ * A new segment is started each time the appender is created and whenever the current one is full, and the oldest
+ * segments are deleted once they take up more than the maximum total size. Use BunyanFileDecoder to read them back.
+ *
+ * If a segment can't be opened, for example because storage is full, events are dropped and opening is tried again
+ * after a few seconds.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class BunyanFileAppender extends BunyanAppender {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 256 * 1024;
+    public static final long DEFAULT_MAX_TOTAL_SIZE = 4 * 1024 * 1024;
+
+    private static final String TAG = BunyanFileAppender.class.getSimpleName();
+
+    private static final int MIN_SEGMENT_SIZE = 4 * 1024;
+    private static final int MAX_TAG_BYTES = 1024;
+    private static final char REPLACEMENT_CHAR = '?';
+    private static final long RETRY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    @NonNull
+    private final File mDirectory;
+
+    private final int mSegmentSize;
+
+    private final long mMaxTotalSize;
+
+    // Largest message and stack trace that will fit in an empty segment
+    private final int mMaxPayloadBytes;
+
+    // Ids of tags written to the current segment
+    @NonNull
+    private final HashMap<String, Integer> mTagIds = new HashMap<>();
+
+    @Nullable
+    private MappedByteBuffer mBuffer;
+
+    private long mSequence = -1;
+
+    private boolean mFailed;
+
+    private long mFailedNanos;
+
+
+    public BunyanFileAppender(@NonNull File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_TOTAL_SIZE);
+    }
+
+    public BunyanFileAppender(@NonNull File directory, int segmentSize, long maxTotalSize) {
+        if (segmentSize < MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segment size must be at least " + MIN_SEGMENT_SIZE + " bytes");
+        } else if (maxTotalSize < segmentSize) {
+            throw new IllegalArgumentException("Maximum total size must be at least the segment size");
+        }
+
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        mMaxTotalSize = maxTotalSize;
+        mMaxPayloadBytes = segmentSize - HEADER_SIZE - TAG_RECORD_SIZE - MAX_TAG_BYTES - EVENT_RECORD_SIZE;
+    }
+
+
+    @Override
+    public void logEvent(@Level int level, @NonNull String tag, @NonNull String message, @Nullable Throwable t) {
+        write(level, tag, message, System.currentTimeMillis(), t);
+    }
+
+    // Events are stamped with the time they were logged, rather than written, in case they were logged async
+    @Override
+    public void logEvent(@Level int level,
+                         @NonNull String tag,
+                         @NonNull BunyanMessage message,
+                         @Nullable BunyanFields fields,
+                         @NonNull BunyanMdc.Snapshot mdc,
+                         long timestamp,
+                         @Nullable String threadName,
+                         @Nullable Throwable t) {
+        String text = fields != null && fields.size() > 0 ? fields.getString(message) : message.getString();
+        write(level, tag, text, timestamp != 0 ? timestamp : System.currentTimeMillis(), t);
+    }
+
+    // Forces the current segment to storage, which is only needed to guard against the device itself going down
+    public synchronized void flush() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+    }
+
+    @NonNull
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    @Override
+    protected boolean usesEventDetails() {
+        return true;
+    }
+
+    private void write(@Level int level,
+                       @NonNull String tag,
+                       @NonNull String message,
+                       long timestamp,
+                       @Nullable Throwable t) {
+        // None of this depends on the segment, so it's done before taking the lock
+        String stackTrace = t != null ? getStackTrace(t) : null;
+        int tagBytes = getUtf8Length(tag, MAX_TAG_BYTES);
+        int messageBytes = getUtf8Length(message, mMaxPayloadBytes);
+        int stackTraceBytes = stackTrace != null ? getUtf8Length(stackTrace, mMaxPayloadBytes - messageBytes) : 0;
+        int size = EVENT_RECORD_SIZE + messageBytes + stackTraceBytes;
+
+        synchronized (this) {
+            MappedByteBuffer buffer = mBuffer != null ? mBuffer : openSegment();
+            if (buffer == null) {
+                return;
+            }
+
+            Integer tagId = mTagIds.get(tag);
+            if (size + (tagId == null ? TAG_RECORD_SIZE + tagBytes : 0) > buffer.remaining()) {
+                buffer = openSegment();
+                if (buffer == null) {
+                    return;
+                }
+                tagId = null;
+            }
+
+            if (tagId == null) {
+                tagId = mTagIds.size();
+                mTagIds.put(tag, tagId);
+                writeTag(buffer, tagId, tag, tagBytes);
+            }
+            writeEvent(buffer, timestamp, level, tagId, message, messageBytes, stackTrace, stackTraceBytes);
+        }
+    }
+
+    // Called holding the lock. Returns null, and drops the current segment, if the next one can't be opened
+    @Nullable
+    private MappedByteBuffer openSegment() {
+        if (mFailed && System.nanoTime() - mFailedNanos < RETRY_INTERVAL_NANOS) {
+            return null;
+        }
+
+        // Left for the OS to write out, like every other write to the mapping. flush() forces the current one
+        mBuffer = null;
+
+        try {
+            if (mSequence < 0) {
+                if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                    throw new IOException("Unable to create directory");
+                }
+
+                // Carry on after any segments left from previous runs
+                File[] segments = listSegments(mDirectory);
+                mSequence = segments.length > 0 ? getSequence(segments[segments.length - 1]) : -1;
+            }
+            mSequence++;
+
+            RandomAccessFile file = new RandomAccessFile(getSegmentFile(mDirectory, mSequence), "rw");
+            try {
+                // Mapping stays valid once the file is closed
+                file.setLength(mSegmentSize);
+                mBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open log segment in " + mDirectory + ", dropping events for now", e);
+            mFailed = true;
+            mFailedNanos = System.nanoTime();
+            mBuffer = null;
+            return null;
+        }
+
+        mFailed = false;
+        mBuffer.putInt(MAGIC);
+        mTagIds.clear();
+        deleteOldSegments();
+        return mBuffer;
+    }
+
+    private void deleteOldSegments() {
+        File[] segments = listSegments(mDirectory);
+        long totalSize = 0;
+        for (File segment : segments) {
+            totalSize += segment.length();
+        }
+
+        // Never the newest, which is the one just opened
+        for (int i = 0; i < segments.length - 1 && totalSize > mMaxTotalSize; i++) {
+            long length = segments[i].length();
+            if (segments[i].delete()) {
+                totalSize -= length;
+            }
+        }
+    }
+
+    /*
+     * Records are written type byte last, so one cut short by the process dying is still read as the end of the
+     * segment rather than garbage.
+     */
+    private static void writeTag(@NonNull MappedByteBuffer buffer, int tagId, @NonNull String tag, int tagBytes) {
+        int start = buffer.position();
+        buffer.position(start + 1);
+        buffer.putInt(tagId);
+        buffer.putShort((short) tagBytes);
+        putUtf8(buffer, tag, tagBytes);
+        buffer.put(start, RECORD_TAG);
+    }
+
+    private static void writeEvent(@NonNull MappedByteBuffer buffer,
+                                   long timestamp,
+                                   @Level int level,
+                                   int tagId,
+                                   @NonNull String message,
+                                   int messageBytes,
+                                   @Nullable String stackTrace,
+                                   int stackTraceBytes) {
+        int start = buffer.position();
+        buffer.position(start + 1);
+        buffer.putLong(timestamp);
+        buffer.put((byte) level);
+        buffer.putInt(tagId);
+        buffer.putInt(messageBytes);
+        putUtf8(buffer, message, messageBytes);
+        buffer.putInt(stackTraceBytes);
+        if (stackTrace != null) {
+            putUtf8(buffer, stackTrace, stackTraceBytes);
+        }
+        buffer.put(start, RECORD_EVENT);
+    }
+
+    // Bytes needed to encode as much of the string as fits in maxBytes, without splitting a character
+    private static int getUtf8Length(@NonNull String s, int maxBytes) {
+        int length = s.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            int charBytes;
+            if (c < 0x80) {
+                charBytes = 1;
+            } else if (c < 0x800) {
+                charBytes = 2;
+            } else if (isSurrogatePair(s, i)) {
+                charBytes = 4;
+            } else if (isSurrogate(c)) {
+                charBytes = 1;
+            } else {
+                charBytes = 3;
+            }
+
+            if (bytes + charBytes > maxBytes) {
+                break;
+            }
+            bytes += charBytes;
+            if (charBytes == 4) {
+                i++;
+            }
+        }
+        return bytes;
+    }
+
+    // Writes exactly byteCount bytes, as measured by getUtf8Length(). Unpaired surrogates are replaced
+    private static void putUtf8(@NonNull MappedByteBuffer buffer, @NonNull String s, int byteCount) {
+        int end = buffer.position() + byteCount;
+        for (int i = 0; buffer.position() < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | c >> 6));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            } else if (isSurrogatePair(s, i)) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                buffer.put((byte) (0xF0 | codePoint >> 18));
+                buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint & 0x3F));
+            } else if (isSurrogate(c)) {
+                buffer.put((byte) REPLACEMENT_CHAR);
+            } else {
+                buffer.put((byte) (0xE0 | c >> 12));
+                buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    // Character.isSurrogate() needs API 19
+    private static boolean isSurrogate(char c) {
+        return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+    }
+
+    private static boolean isSurrogatePair(@NonNull String s, int index) {
+        return Character.isHighSurrogate(s.charAt(index)) && index + 1 < s.length() &&
+                Character.isLowSurrogate(s.charAt(index + 1));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.oriley.bunyan.file;
+
+import android.support.annotation.NonNull;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+
+import static me.oriley.bunyan.file.BunyanFileFormat.*;
+
+/*
+ * Renders segments written by BunyanFileAppender as text, one line per event followed by any stack trace. The only
+ * Android references are constants inlined at compile time, so it can also be run on a pulled log directory:
+ *
+ *     java -cp bunyan-file.jar me.oriley.bunyan.file.BunyanFileDecoder <directory or segment>...
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class BunyanFileDecoder {
+
+    @NonNull
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: BunyanFileDecoder <directory or segment>...");
+            System.exit(1);
+        }
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, UTF_8));
+        for (String arg : args) {
+            File file = new File(arg);
+            if (file.isDirectory()) {
+                decodeDirectory(file, out);
+            } else {
+                decodeSegment(file, out);
+            }
+        }
+        out.flush();
+    }
+
+    // Every segment in the directory, oldest first
+    public static void decodeDirectory(@NonNull File directory, @NonNull Appendable out) throws IOException {
+        for (File segment : listSegments(directory)) {
+            decodeSegment(segment, out);
+        }
+    }
+
+    public static void decodeSegment(@NonNull File segment, @NonNull Appendable out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(readFile(segment));
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a log segment: " + segment);
+        }
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat(TEXT_DATE_FORMAT, Locale.US);
+        HashMap<Integer, String> tags = new HashMap<>();
+        try {
+            while (buffer.hasRemaining()) {
+                byte type = buffer.get();
+                if (type == RECORD_END) {
+                    break;
+                } else if (type == RECORD_TAG) {
+                    int tagId = buffer.getInt();
+                    tags.put(tagId, getUtf8(buffer, buffer.getShort() & 0xFFFF));
+                } else if (type == RECORD_EVENT) {
+                    long timestamp = buffer.getLong();
+                    int level = buffer.get();
+                    String tag = tags.get(buffer.getInt());
+                    String message = getUtf8(buffer, buffer.getInt());
+                    String stackTrace = getUtf8(buffer, buffer.getInt());
+
+                    out.append(dateFormat.format(new Date(timestamp))).append(' ').append(getLevelChar(level))
+                            .append('/').append(tag != null ? tag : "?").append(": ").append(message).append('\n');
+                    out.append(stackTrace);
+                } else {
+                    throw new IOException("Unknown record type " + type + " in " + segment);
+                }
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt log segment: " + segment, e);
+        }
+    }
+
+    @NonNull
+    private static String getUtf8(@NonNull ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        String s = new String(buffer.array(), buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+
+    @NonNull
+    private static byte[] readFile(@NonNull File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) input.length()];
+            input.readFully(bytes);
+            return bytes;
+        } finally {
+            input.close();
+        }
+    }
+}
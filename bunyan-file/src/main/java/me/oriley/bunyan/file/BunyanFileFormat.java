@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.oriley.bunyan.file;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Locale;
+
+/*
+ * Layout of segment files, shared by the appender and decoder. All values are big endian.
+ *
+ * Each segment starts with MAGIC and is followed by records, each starting with a type byte. The rest of the file is
+ * zero filled, so a RECORD_END type marks the end. Tags are written once per segment as a RECORD_TAG and referred to by
+ * id, so any segment can be decoded by itself once older ones have been deleted.
+ *
+ * Tag record:   type (1), id (4), length (2), UTF-8 tag
+ * Event record: type (1), timestamp millis (8), level (1), tag id (4), length (4), UTF-8 message, length (4), UTF-8
+ *               stack trace (empty if there is no throwable)
+ */
+final class BunyanFileFormat {
+
+    static final int MAGIC = 0x42594E31; // BYN1
+    static final int HEADER_SIZE = 4;
+
+    static final byte RECORD_END = 0;
+    static final byte RECORD_TAG = 1;
+    static final byte RECORD_EVENT = 2;
+
+    static final int TAG_RECORD_SIZE = 1 + 4 + 2;
+    static final int EVENT_RECORD_SIZE = 1 + 8 + 1 + 4 + 4 + 4;
+
+    // Text layout used by the decoder and BunyanTextFileAppender, date followed by level/tag: message
+    static final String TEXT_DATE_FORMAT = "yyyy-MM-dd HH:mm:ss.SSS";
+
+    private static final String SEGMENT_PREFIX = "bunyan-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    @NonNull
+    private static final FileFilter SEGMENT_FILTER = new FileFilter() {
+        @Override
+        public boolean accept(File file) {
+            String name = file.getName();
+            return file.isFile() && name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+        }
+    };
+
+
+    // Zero padded, so segments sort oldest first by name
+    @NonNull
+    static File getSegmentFile(@NonNull File directory, long sequence) {
+        return new File(directory, String.format(Locale.US, "%s%019d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    }
+
+    static long getSequence(@NonNull File segment) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Oldest first
+    @NonNull
+    static File[] listSegments(@NonNull File directory) {
+        File[] segments = directory.listFiles(SEGMENT_FILTER);
+        if (segments == null) {
+            return new File[0];
+        }
+
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    static char getLevelChar(int level) {
+        switch (level) {
+            case Log.VERBOSE:
+                return 'V';
+            case Log.DEBUG:
+                return 'D';
+            case Log.INFO:
+                return 'I';
+            case Log.WARN:
+                return 'W';
+            case Log.ERROR:
+                return 'E';
+            case Log.ASSERT:
+                return 'A';
+            default:
+                return '?';
+        }
+    }
+
+    @NonNull
+    static String getStackTrace(@NonNull Throwable t) {
+        StringWriter writer = new StringWriter();
+        t.printStackTrace(new PrintWriter(writer));
+        return writer.toString();
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.oriley.bunyan.file;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import me.oriley.bunyan.Bunyan.Level;
+import me.oriley.bunyan.BunyanAppender;
+import me.oriley.bunyan.BunyanFields;
+import me.oriley.bunyan.BunyanMdc;
+import me.oriley.bunyan.BunyanMessage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static me.oriley.bunyan.file.BunyanFileFormat.TEXT_DATE_FORMAT;
+import static me.oriley.bunyan.file.BunyanFileFormat.getLevelChar;
+import static me.oriley.bunyan.file.BunyanFileFormat.getStackTrace;
+
+/*
+ * Writes events as plain text lines, in the same layout as BunyanFileDecoder. Events are encoded into a buffer and
+ * written in batches, when the buffer fills, every FLUSH_INTERVAL_MILLIS, or straight away for ERROR and above, so a
+ * burst of events only costs a write per batch.
+ *
+ * The current file is rolled once it reaches the maximum size or has been open for the roll interval. Rolled files are
+ * compressed on a background thread, and only the newest are kept.
+ *
+ * If the file can't be opened or written to, for example because storage is full, events are dropped and the file is
+ * reopened after a few seconds, as with BunyanFileAppender.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class BunyanTextFileAppender extends BunyanAppender {
+
+    public static final long DEFAULT_MAX_FILE_SIZE = 1024 * 1024;
+    public static final long DEFAULT_ROLL_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+    public static final int DEFAULT_MAX_ROLLED_FILES = 5;
+
+    private static final String TAG = BunyanTextFileAppender.class.getSimpleName();
+    private static final String THREAD_NAME = "Bunyan-TextFile";
+
+    private static final String FILE_NAME = "bunyan";
+    private static final String FILE_SUFFIX = ".log";
+    private static final String GZIP_SUFFIX = ".gz";
+
+    private static final int BATCH_SIZE = 32 * 1024;
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+    private static final long RETRY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static final int INITIAL_CHARS = 1024;
+
+    // Char buffers grown past this for a large event are dropped after use rather than kept
+    private static final int MAX_RETAINED_CHARS = 16 * 1024;
+
+    // Date and time up to the seconds, without the millis
+    private static final int SECONDS_LENGTH = TEXT_DATE_FORMAT.length() - 4;
+
+    @NonNull
+    private final File mDirectory;
+
+    private final long mMaxFileSize;
+
+    private final long mRollIntervalMillis;
+
+    private final int mMaxRolledFiles;
+
+    @NonNull
+    private final ByteBuffer mBytes = ByteBuffer.allocateDirect(BATCH_SIZE);
+
+    @NonNull
+    private CharBuffer mChars = CharBuffer.allocate(INITIAL_CHARS);
+
+    @NonNull
+    private final CharsetEncoder mEncoder = Charset.forName("UTF-8").newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    @NonNull
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat(TEXT_DATE_FORMAT, Locale.US);
+
+    // Formatted date up to the seconds, only reformatted when the second changes
+    @NonNull
+    private final char[] mSeconds = new char[SECONDS_LENGTH];
+
+    private long mSecondsTimestamp = -1;
+
+    @Nullable
+    private ScheduledExecutorService mExecutor;
+
+    @Nullable
+    private FileChannel mChannel;
+
+    private long mFileSize;
+
+    private long mFileOpenedMillis;
+
+    private boolean mFailed;
+
+    private long mFailedNanos;
+
+
+    public BunyanTextFileAppender(@NonNull File directory) {
+        this(directory, DEFAULT_MAX_FILE_SIZE, DEFAULT_ROLL_INTERVAL_MILLIS, DEFAULT_MAX_ROLLED_FILES);
+    }
+
+    public BunyanTextFileAppender(@NonNull File directory,
+                                  long maxFileSize,
+                                  long rollIntervalMillis,
+                                  int maxRolledFiles) {
+        if (maxFileSize <= 0 || rollIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Maximum file size and roll interval must be positive");
+        } else if (maxRolledFiles < 0) {
+            throw new IllegalArgumentException("Maximum rolled files must not be negative");
+        }
+
+        mDirectory = directory;
+        mMaxFileSize = maxFileSize;
+        mRollIntervalMillis = rollIntervalMillis;
+        mMaxRolledFiles = maxRolledFiles;
+    }
+
+
+    @Override
+    public void logEvent(@Level int level, @NonNull String tag, @NonNull String message, @Nullable Throwable t) {
+        write(level, tag, message, System.currentTimeMillis(), t);
+    }
+
+    // Events are stamped with the time they were logged, rather than written, in case they were logged async
+    @Override
+    public void logEvent(@Level int level,
+                         @NonNull String tag,
+                         @NonNull BunyanMessage message,
+                         @Nullable BunyanFields fields,
+                         @NonNull BunyanMdc.Snapshot mdc,
+                         long timestamp,
+                         @Nullable String threadName,
+                         @Nullable Throwable t) {
+        String text = fields != null && fields.size() > 0 ? fields.getString(message) : message.getString();
+        write(level, tag, text, timestamp != 0 ? timestamp : System.currentTimeMillis(), t);
+    }
+
+    // Writes out any buffered events
+    public synchronized void flush() {
+        if (mChannel != null && !mFailed) {
+            writeBatch();
+            rollIfNeeded(System.currentTimeMillis());
+        }
+    }
+
+    @NonNull
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    @Override
+    protected boolean usesEventDetails() {
+        return true;
+    }
+
+    private void write(@Level int level,
+                       @NonNull String tag,
+                       @NonNull String message,
+                       long timestamp,
+                       @Nullable Throwable t) {
+        // Doesn't depend on the file, so it's done before taking the lock
+        String stackTrace = t != null ? getStackTrace(t) : null;
+
+        synchronized (this) {
+            if (mFailed) {
+                if (System.nanoTime() - mFailedNanos < RETRY_INTERVAL_NANOS) {
+                    return;
+                }
+                mFailed = false;
+            }
+
+            long now = System.currentTimeMillis();
+            if (mChannel == null) {
+                openFile(now);
+                if (mFailed) {
+                    return;
+                }
+            }
+
+            appendEvent(timestamp, level, tag, message, stackTrace);
+            encodeEvent();
+
+            if (level >= Log.ERROR) {
+                writeBatch();
+            }
+            rollIfNeeded(now);
+        }
+    }
+
+    private void appendEvent(long timestamp,
+                             @Level int level,
+                             @NonNull String tag,
+                             @NonNull String message,
+                             @Nullable String stackTrace) {
+        int length = TEXT_DATE_FORMAT.length() + tag.length() + message.length() + 6 +
+                (stackTrace != null ? stackTrace.length() : 0);
+        if (length > mChars.capacity()) {
+            mChars = CharBuffer.allocate(Math.max(length, mChars.capacity() * 2));
+        }
+
+        long seconds = timestamp / 1000;
+        if (seconds != mSecondsTimestamp) {
+            mDateFormat.format(new Date(timestamp)).getChars(0, SECONDS_LENGTH, mSeconds, 0);
+            mSecondsTimestamp = seconds;
+        }
+
+        int millis = (int) (timestamp % 1000);
+        mChars.put(mSeconds)
+                .put('.')
+                .put((char) ('0' + millis / 100))
+                .put((char) ('0' + millis / 10 % 10))
+                .put((char) ('0' + millis % 10))
+                .put(' ')
+                .put(getLevelChar(level))
+                .put('/')
+                .put(tag)
+                .put(": ")
+                .put(message)
+                .put('\n');
+        if (stackTrace != null) {
+            mChars.put(stackTrace);
+        }
+    }
+
+    // Encodes the event into the batch, writing the batch out whenever it fills
+    private void encodeEvent() {
+        mChars.flip();
+        while (true) {
+            CoderResult result = mEncoder.encode(mChars, mBytes, false);
+            if (result.isOverflow()) {
+                writeBatch();
+                if (mFailed) {
+                    break;
+                }
+            } else {
+                break;
+            }
+        }
+
+        if (mChars.capacity() > MAX_RETAINED_CHARS) {
+            mChars = CharBuffer.allocate(INITIAL_CHARS);
+        } else {
+            mChars.clear();
+        }
+    }
+
+    private void writeBatch() {
+        FileChannel channel = mChannel;
+        if (channel == null || mBytes.position() == 0) {
+            return;
+        }
+
+        mBytes.flip();
+        try {
+            while (mBytes.hasRemaining()) {
+                mFileSize += channel.write(mBytes);
+            }
+        } catch (IOException e) {
+            fail("Unable to write to " + getCurrentFile(), e);
+            return;
+        } finally {
+            mBytes.clear();
+        }
+    }
+
+    // Only called between events, so an event is never split across files
+    private void rollIfNeeded(long now) {
+        boolean empty = mFileSize == 0 && mBytes.position() == 0;
+        boolean expired = !empty && now - mFileOpenedMillis >= mRollIntervalMillis;
+        if (mChannel != null && (mFileSize >= mMaxFileSize || expired)) {
+            writeBatch();
+            rollFile(now);
+        }
+    }
+
+    private void openFile(long now) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            fail("Unable to create " + mDirectory, null);
+            return;
+        }
+
+        try {
+            mChannel = new FileOutputStream(getCurrentFile(), true).getChannel();
+            mFileSize = mChannel.size();
+            mFileOpenedMillis = now;
+        } catch (IOException e) {
+            fail("Unable to open " + getCurrentFile(), e);
+            return;
+        }
+
+        // Start flushing, and finish compressing anything left from a previous run
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread thread = new Thread(r, THREAD_NAME);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            mExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            compressRolledFiles();
+        }
+    }
+
+    private void rollFile(long now) {
+        closeChannel();
+
+        File current = getCurrentFile();
+        File rolled = new File(mDirectory, String.format(Locale.US, "%s-%013d%s", FILE_NAME, now, FILE_SUFFIX));
+        if (!current.renameTo(rolled)) {
+            Log.w(TAG, "Unable to roll " + current);
+        }
+
+        openFile(now);
+        compressRolledFiles();
+    }
+
+    private void compressRolledFiles() {
+        ScheduledExecutorService executor = mExecutor;
+        if (executor == null) {
+            return;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File[] rolledFiles = listRolledFiles();
+                for (File file : rolledFiles) {
+                    if (file.getName().endsWith(FILE_SUFFIX)) {
+                        compress(file);
+                    }
+                }
+                deleteOldFiles();
+            }
+        });
+    }
+
+    private void deleteOldFiles() {
+        File[] rolledFiles = listRolledFiles();
+        for (int i = 0; i < rolledFiles.length - mMaxRolledFiles; i++) {
+            if (!rolledFiles[i].delete()) {
+                Log.w(TAG, "Unable to delete " + rolledFiles[i]);
+            }
+        }
+    }
+
+    // Oldest first
+    @NonNull
+    private File[] listRolledFiles() {
+        File[] files = mDirectory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName();
+                return name.startsWith(FILE_NAME + "-") &&
+                        (name.endsWith(FILE_SUFFIX) || name.endsWith(FILE_SUFFIX + GZIP_SUFFIX));
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+
+        Arrays.sort(files);
+        return files;
+    }
+
+    @NonNull
+    private File getCurrentFile() {
+        return new File(mDirectory, FILE_NAME + FILE_SUFFIX);
+    }
+
+    private void closeChannel() {
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close " + getCurrentFile(), e);
+            }
+            mChannel = null;
+        }
+    }
+
+    // Events are dropped until the file is reopened, see logEvent()
+    private void fail(@NonNull String message, @Nullable Throwable t) {
+        Log.e(TAG, message + ", dropping events for now", t);
+        mFailed = true;
+        mFailedNanos = System.nanoTime();
+        closeChannel();
+    }
+
+    // Written to a temporary file first, so a half compressed file is never mistaken for a complete one
+    private static void compress(@NonNull File file) {
+        File compressed = new File(file.getPath() + GZIP_SUFFIX);
+        File temp = new File(compressed.getPath() + ".tmp");
+        byte[] buffer = new byte[8192];
+        try {
+            InputStream input = new FileInputStream(file);
+            try {
+                OutputStream output = new GZIPOutputStream(new FileOutputStream(temp));
+                try {
+                    int read;
+                    while ((read = input.read(buffer)) != -1) {
+                        output.write(buffer, 0, read);
+                    }
+                } finally {
+                    output.close();
+                }
+            } finally {
+                input.close();
+            }
+
+            if (!temp.renameTo(compressed) || !file.delete()) {
+                Log.w(TAG, "Unable to replace " + file + " with " + compressed);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to compress " + file, e);
+            if (!temp.delete()) {
+                Log.w(TAG, "Unable to delete " + temp);
+            }
+        }
+    }
+}
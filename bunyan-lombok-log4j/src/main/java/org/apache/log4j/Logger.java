@@ -18,6 +18,7 @@ package org.apache.log4j;
 
 import android.support.annotation.NonNull;
 import me.oriley.bunyan.BunyanCoreLogger;
+import me.oriley.bunyan.BunyanLoggerRegistry;
 
 /*
  * Shim class to hook into Lombok's @Log4j annotation and provide a BunyanCoreLogger
@@ -25,6 +26,22 @@ import me.oriley.bunyan.BunyanCoreLogger;
 @SuppressWarnings({"unused", "WeakerAccess"})
 public final class Logger extends BunyanCoreLogger {
 
+    @NonNull
+    private static final BunyanLoggerRegistry<Logger> sLoggers = new BunyanLoggerRegistry<>(
+            new BunyanLoggerRegistry.Factory<Logger>() {
+                @NonNull
+                @Override
+                public Logger create(@NonNull Class c) {
+                    return new Logger(c);
+                }
+
+                @NonNull
+                @Override
+                public Logger create(@NonNull String name) {
+                    return new Logger(name);
+                }
+            });
+
 
     Logger(@NonNull Class c) {
         super(c);
@@ -37,11 +54,11 @@ public final class Logger extends BunyanCoreLogger {
 
     @NonNull
     public static Logger getLogger(@NonNull Class<?> c) {
-        return new Logger(c);
+        return sLoggers.getLogger(c);
     }
 
     @NonNull
     public static Logger getLogger(@NonNull String name) {
-        return new Logger(name);
+        return sLoggers.getLogger(name);
     }
 }
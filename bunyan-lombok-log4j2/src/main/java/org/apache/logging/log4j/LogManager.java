@@ -17,6 +17,7 @@
 package org.apache.logging.log4j;
 
 import android.support.annotation.NonNull;
+import me.oriley.bunyan.BunyanLoggerRegistry;
 
 /*
  * Shim class to hook into Lombok's @Log4j2 annotation and provide a BunyanCoreLogger
@@ -24,13 +25,29 @@ import android.support.annotation.NonNull;
 @SuppressWarnings("unused")
 public final class LogManager {
 
+    @NonNull
+    private static final BunyanLoggerRegistry<Logger> sLoggers = new BunyanLoggerRegistry<>(
+            new BunyanLoggerRegistry.Factory<Logger>() {
+                @NonNull
+                @Override
+                public Logger create(@NonNull Class c) {
+                    return new Logger(c);
+                }
+
+                @NonNull
+                @Override
+                public Logger create(@NonNull String name) {
+                    return new Logger(name);
+                }
+            });
+
     @NonNull
     public static Logger getLogger(@NonNull Class<?> c) {
-        return new Logger(c);
+        return sLoggers.getLogger(c);
     }
 
     @NonNull
     public static Logger getLogger(@NonNull String name) {
-        return new Logger(name);
+        return sLoggers.getLogger(name);
     }
 }
\ No newline at end of file
@@ -17,6 +17,7 @@
 package org.slf4j;
 
 import android.support.annotation.NonNull;
+import me.oriley.bunyan.BunyanLoggerRegistry;
 
 /*
  * Shim class to hook into Lombok's @Slf4j annotation and provide a BunyanCoreLogger
@@ -24,13 +25,29 @@ import android.support.annotation.NonNull;
 @SuppressWarnings("unused")
 public final class LoggerFactory {
 
+    @NonNull
+    private static final BunyanLoggerRegistry<Logger> sLoggers = new BunyanLoggerRegistry<>(
+            new BunyanLoggerRegistry.Factory<Logger>() {
+                @NonNull
+                @Override
+                public Logger create(@NonNull Class c) {
+                    return new Logger(c);
+                }
+
+                @NonNull
+                @Override
+                public Logger create(@NonNull String name) {
+                    return new Logger(name);
+                }
+            });
+
     @NonNull
     public static Logger getLogger(@NonNull Class<?> c) {
-        return new Logger(c);
+        return sLoggers.getLogger(c);
     }
 
     @NonNull
     public static Logger getLogger(@NonNull String name) {
-        return new Logger(name);
+        return sLoggers.getLogger(name);
     }
 }
\ No newline at end of file
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.slf4j;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import me.oriley.bunyan.BunyanMdc;
+
+import java.io.Closeable;
+import java.util.Map;
+
+/*
+ * Shim class providing the SLF4J MDC API on top of BunyanMdc
+ */
+@SuppressWarnings("unused")
+public final class MDC {
+
+    public static void put(@NonNull String key, @Nullable String val) {
+        checkKey(key);
+        BunyanMdc.put(key, val);
+    }
+
+    // Removes the key again when closed
+    @NonNull
+    public static MDCCloseable putCloseable(@NonNull String key, @Nullable String val) {
+        put(key, val);
+        return new MDCCloseable(key);
+    }
+
+    @Nullable
+    public static String get(@NonNull String key) {
+        checkKey(key);
+        return BunyanMdc.get(key);
+    }
+
+    public static void remove(@NonNull String key) {
+        checkKey(key);
+        BunyanMdc.remove(key);
+    }
+
+    public static void clear() {
+        BunyanMdc.clear();
+    }
+
+    @Nullable
+    public static Map<String, String> getCopyOfContextMap() {
+        return BunyanMdc.getSnapshot().toMap();
+    }
+
+    public static void setContextMap(@Nullable Map<String, String> contextMap) {
+        BunyanMdc.setSnapshot(BunyanMdc.Snapshot.fromMap(contextMap));
+    }
+
+    private static void checkKey(@Nullable String key) {
+        if (key == null) {
+            throw new IllegalArgumentException("key parameter cannot be null");
+        }
+    }
+
+    public static final class MDCCloseable implements Closeable {
+
+        @NonNull
+        private final String mKey;
+
+
+        private MDCCloseable(@NonNull String key) {
+            mKey = key;
+        }
+
+
+        @Override
+        public void close() {
+            remove(mKey);
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package org.slf4j.ext;
 
 import android.support.annotation.NonNull;
+import me.oriley.bunyan.BunyanLoggerRegistry;
 
 /*
  * Shim class to hook into Lombok's @XSlf4j annotation and provide a BunyanCoreLogger
@@ -24,13 +25,29 @@ import android.support.annotation.NonNull;
 @SuppressWarnings("unused")
 public final class XLoggerFactory {
 
+    @NonNull
+    private static final BunyanLoggerRegistry<XLogger> sLoggers = new BunyanLoggerRegistry<>(
+            new BunyanLoggerRegistry.Factory<XLogger>() {
+                @NonNull
+                @Override
+                public XLogger create(@NonNull Class c) {
+                    return new XLogger(c);
+                }
+
+                @NonNull
+                @Override
+                public XLogger create(@NonNull String name) {
+                    return new XLogger(name);
+                }
+            });
+
     @NonNull
     public static XLogger getXLogger(@NonNull Class<?> c) {
-        return new XLogger(c);
+        return sLoggers.getLogger(c);
     }
 
     @NonNull
     public static XLogger getXLogger(@NonNull String name) {
-        return new XLogger(name);
+        return sLoggers.getLogger(name);
     }
 }
\ No newline at end of file
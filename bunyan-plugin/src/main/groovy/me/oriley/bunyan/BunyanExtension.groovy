@@ -28,4 +28,30 @@ class BunyanExtension {
     def boolean getDebugLogging() {
         return debugLogging
     }
+
+    // Record logging call sites at build time, so %m and %L tags don't capture the stack
+    def boolean callSites = false
+
+    def setCallSites(boolean enable) {
+        callSites = enable
+    }
+
+    def boolean getCallSites() {
+        return callSites
+    }
+
+    // Variants or build types whose logging calls below the configured thresholds are removed at build time
+    def List<String> strip = []
+
+    def strip(String... names) {
+        strip.addAll(names)
+    }
+
+    def setStrip(List<String> names) {
+        strip = names
+    }
+
+    def List<String> getStrip() {
+        return strip
+    }
 }
\ No newline at end of file
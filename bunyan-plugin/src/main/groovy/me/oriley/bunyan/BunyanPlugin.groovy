@@ -41,6 +41,8 @@ class BunyanPlugin implements Plugin<Project> {
         }
 
         project.extensions.create('bunyan', BunyanExtension)
+        BunyanTransform transform = new BunyanTransform(project)
+        project.android.registerTransform(transform)
 
         project.afterEvaluate {
             project.android[variants].all { variant ->
@@ -62,6 +64,8 @@ class BunyanPlugin implements Plugin<Project> {
                 String taskName = ":" + project.name + ":bunyanConfig" + flavorString
                 //noinspection GrUnresolvedAccess,GroovyAssignabilityCheck
                 BunyanGenerator generator = new BunyanGenerator(variantBuildDir, taskName, variantAssetDir, debugLogging)
+                transform.addVariant(variant.name, variant.buildType.name, generator)
+
                 Task mergeAssetsTask = project.tasks["merge${flavorString}Assets"]
                 mergeAssetsTask.doLast {
                     generator.buildBunyan()
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.oriley.bunyan
+
+import com.android.build.api.transform.*
+import com.android.build.gradle.internal.pipeline.TransformManager
+import org.gradle.api.Project
+
+/*
+ * Rewrites logging calls in the project's own classes, see BunyanClassTransformer. Call sites are marked with their
+ * method name and line number when enabled with bunyan { callSites true }, and calls below the thresholds configured
+ * in bunyan.xml are removed for variants or build types listed in bunyan { strip 'release' }. Classes are copied
+ * through untouched otherwise.
+ */
+class BunyanTransform extends Transform {
+
+    private final Project mProject
+
+    // Keyed by variant name
+    private final Map<String, String> mBuildTypes = new HashMap<>()
+    private final Map<String, BunyanGenerator> mGenerators = new HashMap<>()
+
+    BunyanTransform(Project project) {
+        mProject = project
+    }
+
+    void addVariant(String variantName, String buildTypeName, BunyanGenerator generator) {
+        mBuildTypes.put(variantName, buildTypeName)
+        mGenerators.put(variantName, generator)
+    }
+
+    @Override
+    String getName() {
+        return "bunyan"
+    }
+
+    @Override
+    Set<QualifiedContent.ContentType> getInputTypes() {
+        return TransformManager.CONTENT_CLASS
+    }
+
+    @Override
+    Set<? super QualifiedContent.Scope> getScopes() {
+        return TransformManager.PROJECT_ONLY
+    }
+
+    @Override
+    boolean isIncremental() {
+        return false
+    }
+
+    @Override
+    Map<String, Object> getParameterInputs() {
+        // Rerun when the options are changed. Config changes alter the generated BunyanConfig, which recompiles anyway
+        return ["callSites": mProject.bunyan.callSites, "strip": mProject.bunyan.strip.join(",")]
+    }
+
+    @Override
+    void transform(TransformInvocation invocation) throws TransformException, InterruptedException, IOException {
+        String variantName = invocation.context.variantName
+        boolean callSites = mProject.bunyan.callSites
+        boolean strip = isStripped(variantName)
+        TransformOutputProvider outputProvider = invocation.outputProvider
+        outputProvider.deleteAll()
+
+        BunyanThresholdResolver thresholds = null
+        if (strip) {
+            BunyanGenerator generator = mGenerators.get(variantName)
+            if (generator == null) {
+                throw new TransformException("No Bunyan config found for variant " + variantName)
+            }
+            thresholds = generator.createThresholdResolver()
+        }
+
+        boolean enabled = callSites || strip
+        BunyanClassTransformer transformer = new BunyanClassTransformer(callSites, thresholds)
+        invocation.inputs.each { TransformInput input ->
+            input.directoryInputs.each { DirectoryInput directoryInput ->
+                File output = outputProvider.getContentLocation(directoryInput.name, directoryInput.contentTypes,
+                        directoryInput.scopes, Format.DIRECTORY)
+                if (enabled) {
+                    transformer.transformDirectory(directoryInput.file, output)
+                } else {
+                    mProject.copy {
+                        from directoryInput.file
+                        into output
+                    }
+                }
+            }
+
+            input.jarInputs.each { JarInput jarInput ->
+                File output = outputProvider.getContentLocation(jarInput.name, jarInput.contentTypes,
+                        jarInput.scopes, Format.JAR)
+                if (enabled) {
+                    transformer.transformJar(jarInput.file, output)
+                } else {
+                    output.parentFile.mkdirs()
+                    output.bytes = jarInput.file.bytes
+                }
+            }
+        }
+
+        if (strip) {
+            // List of what was removed, so it's easy to check nothing important went
+            File report = mProject.file("${mProject.buildDir}/outputs/bunyan/${variantName}-stripped.txt")
+            report.parentFile.mkdirs()
+            report.text = transformer.strippedCalls.join("\n")
+        }
+
+        if (enabled && mProject.bunyan.debugLogging) {
+            mProject.logger.warn("Bunyan: marked ${transformer.markedCount} call sites, stripped " +
+                    "${transformer.strippedCalls.size()} calls (${transformer.savedBytes} bytes) in ${variantName}")
+        }
+    }
+
+    private boolean isStripped(String variantName) {
+        List<String> strip = mProject.bunyan.strip
+        return strip.contains(variantName) || strip.contains(mBuildTypes.get(variantName))
+    }
+}
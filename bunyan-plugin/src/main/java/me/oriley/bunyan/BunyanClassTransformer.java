@@ -0,0 +1,697 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.oriley.bunyan;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/*
+ * Rewrites logging calls in compiled classes.
+ *
+ * Calls below their logger's build time threshold are stripped. Where every instruction computing the logger and
+ * arguments is free of side effects (constants, local variables, boxing and so on) those go too, otherwise the
+ * arguments are still evaluated and just popped. Loggers are identified from static fields initialised with a class
+ * or name, and calls on any other logger are only stripped below the lowest configured threshold. Event builder
+ * chains, such as logger.atDebug().with(...).log(...), are stripped as a whole when written as a single expression.
+ *
+ * Calls that remain can be marked with BunyanCallSite.mark(), passing the calling method name and line number, so tags
+ * using %m or %L don't need to capture the stack at runtime.
+ *
+ * Instructions are only removed or added where the stack is the same before and after, so stack map frames stay valid
+ * and classes never need to be loaded to recompute them.
+ */
+public final class BunyanClassTransformer {
+
+    private static final String CALL_SITE_CLASS = "me/oriley/bunyan/BunyanCallSite";
+    private static final String EVENT_BUILDER_CLASS = "me/oriley/bunyan/BunyanEventBuilder";
+    private static final String MARK_METHOD = "mark";
+    private static final String MARK_DESCRIPTOR = "(Ljava/lang/String;I)V";
+
+    private static final String CLASS_SUFFIX = ".class";
+    private static final String STATIC_INIT = "<clinit>";
+    private static final String CONSTRUCTOR = "<init>";
+    private static final String CLASS_DESCRIPTOR = "(Ljava/lang/Class;)V";
+    private static final String NAME_DESCRIPTOR = "(Ljava/lang/String;)V";
+    private static final String VOID_RETURN = ")V";
+    private static final String BUILDER_RETURN = ")L" + EVENT_BUILDER_CLASS + ";";
+    private static final String BUILDER_START_PREFIX = "at";
+    private static final String BUILDER_FIELD_PREFIX = "with";
+    private static final String BUILDER_LOG_METHOD = "log";
+
+    // BunyanCoreLogger and the Lombok shims that extend it
+    private static final Set<String> LOGGER_CLASSES = new HashSet<>(Arrays.asList(
+            "me/oriley/bunyan/BunyanCoreLogger",
+            "org/slf4j/Logger",
+            "org/slf4j/ext/XLogger",
+            "org/apache/log4j/Logger",
+            "org/apache/logging/log4j/Logger"));
+
+    // Shim factory methods, as owner.name
+    private static final Set<String> LOGGER_FACTORIES = new HashSet<>(Arrays.asList(
+            "org/slf4j/LoggerFactory.getLogger",
+            "org/slf4j/ext/XLoggerFactory.getXLogger",
+            "org/apache/log4j/Logger.getLogger",
+            "org/apache/logging/log4j/LogManager.getLogger"));
+
+    private static final Set<String> BOXED_CLASSES = new HashSet<>(Arrays.asList(
+            "java/lang/Boolean", "java/lang/Byte", "java/lang/Character", "java/lang/Short",
+            "java/lang/Integer", "java/lang/Long", "java/lang/Float", "java/lang/Double"));
+
+    private final boolean mMarkCallSites;
+
+    @Nullable
+    private final BunyanThresholdResolver mThresholds;
+
+    @NonNull
+    private final List<String> mStrippedCalls = new ArrayList<>();
+
+    private int mMarkedCount;
+
+    private long mOriginalSize;
+
+    private long mTransformedSize;
+
+
+    // Calls are only stripped if thresholds are given
+    public BunyanClassTransformer(boolean markCallSites, @Nullable BunyanThresholdResolver thresholds) {
+        mMarkCallSites = markCallSites;
+        mThresholds = thresholds;
+    }
+
+
+    public void transformDirectory(@NonNull File input, @NonNull File output) throws IOException {
+        File[] files = input.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            File target = new File(output, file.getName());
+            if (file.isDirectory()) {
+                transformDirectory(file, target);
+            } else {
+                File parent = target.getParentFile();
+                if (!parent.exists() && !parent.mkdirs()) {
+                    throw new IOException("Unable to create " + parent);
+                }
+                writeFile(target, transformEntry(file.getName(), readFully(new FileInputStream(file))));
+            }
+        }
+    }
+
+    public void transformJar(@NonNull File input, @NonNull File output) throws IOException {
+        File parent = output.getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent);
+        }
+
+        ZipInputStream zipInput = new ZipInputStream(new BufferedInputStream(new FileInputStream(input)));
+        ZipOutputStream zipOutput = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
+        try {
+            ZipEntry entry;
+            while ((entry = zipInput.getNextEntry()) != null) {
+                zipOutput.putNextEntry(new ZipEntry(entry.getName()));
+                if (!entry.isDirectory()) {
+                    zipOutput.write(transformEntry(entry.getName(), readFully(zipInput)));
+                }
+                zipOutput.closeEntry();
+            }
+        } finally {
+            zipInput.close();
+            zipOutput.close();
+        }
+    }
+
+    // Number of logging calls marked so far
+    public int getMarkedCount() {
+        return mMarkedCount;
+    }
+
+    // Stripped calls so far, as class.method:line level
+    @NonNull
+    public List<String> getStrippedCalls() {
+        return mStrippedCalls;
+    }
+
+    // Bytes saved across all changed classes, which is negative if marks added more than stripping removed
+    public long getSavedBytes() {
+        return mOriginalSize - mTransformedSize;
+    }
+
+    @NonNull
+    private byte[] transformEntry(@NonNull String name, @NonNull byte[] bytes) {
+        if (!name.endsWith(CLASS_SUFFIX)) {
+            return bytes;
+        }
+
+        byte[] transformed = transformClass(bytes);
+        return transformed != null ? transformed : bytes;
+    }
+
+    // Returns null if the class has no logging calls
+    @Nullable
+    byte[] transformClass(@NonNull byte[] bytes) {
+        ClassNode classNode = new ClassNode(Opcodes.ASM5);
+        new ClassReader(bytes).accept(classNode, 0);
+
+        Map<String, String> loggerFields = findLoggerFields(classNode);
+        boolean changed = false;
+        for (MethodNode method : classNode.methods) {
+            changed |= transformMethod(classNode, method, loggerFields);
+        }
+
+        if (!changed) {
+            return null;
+        }
+
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        classNode.accept(writer);
+        byte[] transformed = writer.toByteArray();
+
+        mOriginalSize += bytes.length;
+        mTransformedSize += transformed.length;
+        return transformed;
+    }
+
+    private boolean transformMethod(@NonNull ClassNode classNode,
+                                    @NonNull MethodNode method,
+                                    @NonNull Map<String, String> loggerFields) {
+        Set<LabelNode> jumpTargets = null;
+        boolean changed = false;
+        int line = 0;
+
+        for (AbstractInsnNode insn : method.instructions.toArray()) {
+            if (insn instanceof LineNumberNode) {
+                line = ((LineNumberNode) insn).line;
+                continue;
+            }
+
+            if (insn.getOpcode() != Opcodes.INVOKEVIRTUAL) {
+                continue;
+            }
+
+            MethodInsnNode call = (MethodInsnNode) insn;
+            boolean builderCall = EVENT_BUILDER_CLASS.equals(call.owner) && BUILDER_LOG_METHOD.equals(call.name);
+            int level = BunyanThresholdResolver.getMethodLevel(call.name);
+            if ((!builderCall && (!LOGGER_CLASSES.contains(call.owner) || level < 0)) ||
+                    !call.desc.endsWith(VOID_RETURN)) {
+                continue;
+            }
+
+            if (jumpTargets == null) {
+                jumpTargets = findJumpTargets(method);
+            }
+
+            AbstractInsnNode start = findExpressionStart(call, jumpTargets);
+            String methodName = call.name;
+            if (builderCall) {
+                // The level comes from the start of the chain, if the whole chain is one expression
+                MethodInsnNode chainStart = getBuilderChainStart(start);
+                level = chainStart != null ? getBuilderLevel(chainStart) : -1;
+                methodName = chainStart != null ? chainStart.name : methodName;
+            }
+
+            if (mThresholds != null && level >= 0 &&
+                    level < mThresholds.getThreshold(getLoggerName(classNode, start, loggerFields))) {
+                if (start != null && isRemovable(classNode, method, start, call)) {
+                    removeExpression(method, start, call);
+                    removeEmptyTryCatchBlocks(method);
+                } else {
+                    popArguments(method, call);
+                }
+                mStrippedCalls.add(Type.getObjectType(classNode.name).getClassName() + "." + method.name + ":" +
+                        line + " " + methodName);
+                changed = true;
+            } else if (mMarkCallSites) {
+                // The logging call's own arguments are already on the stack, mark() just goes on top of them
+                InsnList mark = new InsnList();
+                mark.add(new LdcInsnNode(method.name));
+                mark.add(new LdcInsnNode(line));
+                mark.add(new MethodInsnNode(Opcodes.INVOKESTATIC, CALL_SITE_CLASS, MARK_METHOD, MARK_DESCRIPTOR, false));
+                method.instructions.insertBefore(call, mark);
+                mMarkedCount++;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // Static logger fields initialised with a class literal or name, mapped to the logger name
+    @NonNull
+    private static Map<String, String> findLoggerFields(@NonNull ClassNode classNode) {
+        Map<String, String> fields = new HashMap<>();
+        for (MethodNode method : classNode.methods) {
+            if (!STATIC_INIT.equals(method.name)) {
+                continue;
+            }
+
+            for (AbstractInsnNode insn : method.instructions.toArray()) {
+                if (insn.getOpcode() != Opcodes.PUTSTATIC || !((FieldInsnNode) insn).owner.equals(classNode.name)) {
+                    continue;
+                }
+
+                AbstractInsnNode create = getPreviousInstruction(insn);
+                AbstractInsnNode constant = create != null ? getPreviousInstruction(create) : null;
+                if (!(create instanceof MethodInsnNode) || !(constant instanceof LdcInsnNode)) {
+                    continue;
+                }
+
+                MethodInsnNode createCall = (MethodInsnNode) create;
+                boolean constructor = createCall.getOpcode() == Opcodes.INVOKESPECIAL &&
+                        CONSTRUCTOR.equals(createCall.name) && LOGGER_CLASSES.contains(createCall.owner) &&
+                        (CLASS_DESCRIPTOR.equals(createCall.desc) || NAME_DESCRIPTOR.equals(createCall.desc));
+                boolean factory = createCall.getOpcode() == Opcodes.INVOKESTATIC &&
+                        LOGGER_FACTORIES.contains(createCall.owner + "." + createCall.name);
+                if (!constructor && !factory) {
+                    continue;
+                }
+
+                Object value = ((LdcInsnNode) constant).cst;
+                if (value instanceof Type) {
+                    fields.put(((FieldInsnNode) insn).name, ((Type) value).getClassName());
+                } else if (value instanceof String) {
+                    fields.put(((FieldInsnNode) insn).name, (String) value);
+                }
+            }
+        }
+        return fields;
+    }
+
+    @Nullable
+    private static String getLoggerName(@NonNull ClassNode classNode,
+                                        @Nullable AbstractInsnNode receiver,
+                                        @NonNull Map<String, String> loggerFields) {
+        if (receiver == null || receiver.getOpcode() != Opcodes.GETSTATIC) {
+            return null;
+        }
+
+        FieldInsnNode field = (FieldInsnNode) receiver;
+        return field.owner.equals(classNode.name) ? loggerFields.get(field.name) : null;
+    }
+
+    // The logger's atX() call directly after the instruction pushing the logger, or null if there isn't one
+    @Nullable
+    private static MethodInsnNode getBuilderChainStart(@Nullable AbstractInsnNode receiver) {
+        AbstractInsnNode next = receiver != null ? getNextInstruction(receiver) : null;
+        if (next == null || next.getOpcode() != Opcodes.INVOKEVIRTUAL) {
+            return null;
+        }
+
+        MethodInsnNode call = (MethodInsnNode) next;
+        return LOGGER_CLASSES.contains(call.owner) && call.name.startsWith(BUILDER_START_PREFIX) &&
+                call.desc.endsWith(BUILDER_RETURN) ? call : null;
+    }
+
+    // Level of atDebug() and friends, or -1 for at(level), which isn't known at build time
+    private static int getBuilderLevel(@NonNull MethodInsnNode chainStart) {
+        String name = chainStart.name.substring(BUILDER_START_PREFIX.length());
+        return BunyanThresholdResolver.getMethodLevel(name.toLowerCase(Locale.US));
+    }
+
+    /*
+     * Walks back from a logging call to the instruction that pushes the logger, so long as the code in between is a
+     * straight run of instructions with known stack effects. Returns null otherwise.
+     */
+    @Nullable
+    private static AbstractInsnNode findExpressionStart(@NonNull MethodInsnNode call, @NonNull Set<LabelNode> jumpTargets) {
+        // Slots taken by the logger and arguments
+        int needed = Type.getArgumentsAndReturnSizes(call.desc) >> 2;
+
+        for (AbstractInsnNode insn = call.getPrevious(); insn != null; insn = insn.getPrevious()) {
+            if (insn instanceof LabelNode) {
+                if (jumpTargets.contains(insn)) {
+                    return null;
+                }
+                continue;
+            } else if (insn instanceof LineNumberNode) {
+                continue;
+            } else if (insn instanceof FrameNode) {
+                return null;
+            }
+
+            int[] effect = getStackEffect(insn);
+            if (effect == null || effect[1] > needed) {
+                return null;
+            }
+
+            needed = needed - effect[1] + effect[0];
+            if (needed == 0) {
+                return insn;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isRemovable(@NonNull ClassNode classNode,
+                                       @NonNull MethodNode method,
+                                       @NonNull AbstractInsnNode start,
+                                       @NonNull MethodInsnNode call) {
+        for (AbstractInsnNode insn = start; insn != call; insn = insn.getNext()) {
+            if (insn.getOpcode() >= 0 && !isSideEffectFree(classNode, method, insn)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSideEffectFree(@NonNull ClassNode classNode,
+                                            @NonNull MethodNode method,
+                                            @NonNull AbstractInsnNode insn) {
+        int opcode = insn.getOpcode();
+        if ((opcode >= Opcodes.ACONST_NULL && opcode <= Opcodes.ALOAD) ||
+                (opcode >= Opcodes.IASTORE && opcode <= Opcodes.SASTORE) ||
+                (opcode >= Opcodes.I2L && opcode <= Opcodes.DCMPG)) {
+            return true;
+        }
+
+        switch (opcode) {
+            case Opcodes.DUP:
+            case Opcodes.NEWARRAY:
+            case Opcodes.ANEWARRAY:
+                return true;
+            case Opcodes.IDIV:
+            case Opcodes.LDIV:
+            case Opcodes.IREM:
+            case Opcodes.LREM:
+                // Could throw
+                return false;
+            case Opcodes.GETSTATIC:
+                // Other classes might not have been initialised yet
+                return ((FieldInsnNode) insn).owner.equals(classNode.name);
+            case Opcodes.GETFIELD:
+                AbstractInsnNode previous = getPreviousInstruction(insn);
+                return (method.access & Opcodes.ACC_STATIC) == 0 && previous != null &&
+                        previous.getOpcode() == Opcodes.ALOAD && ((VarInsnNode) previous).var == 0;
+            case Opcodes.INVOKEVIRTUAL:
+                // Starting and adding to an event builder only matters if the event is logged
+                MethodInsnNode builderCall = (MethodInsnNode) insn;
+                return (LOGGER_CLASSES.contains(builderCall.owner) &&
+                        builderCall.name.startsWith(BUILDER_START_PREFIX) &&
+                        builderCall.desc.endsWith(BUILDER_RETURN)) ||
+                        (EVENT_BUILDER_CLASS.equals(builderCall.owner) &&
+                                builderCall.name.startsWith(BUILDER_FIELD_PREFIX));
+            case Opcodes.INVOKESTATIC:
+                MethodInsnNode boxing = (MethodInsnNode) insn;
+                return BOXED_CLASSES.contains(boxing.owner) && "valueOf".equals(boxing.name) &&
+                        Type.getArgumentTypes(boxing.desc)[0].getSort() != Type.OBJECT;
+            default:
+                return opcode >= Opcodes.IADD && opcode <= Opcodes.LXOR;
+        }
+    }
+
+    // Slots popped and pushed, or null for instructions that branch or aren't simple to account for
+    @Nullable
+    private static int[] getStackEffect(@NonNull AbstractInsnNode insn) {
+        int opcode = insn.getOpcode();
+        switch (opcode) {
+            case Opcodes.ACONST_NULL:
+            case Opcodes.ICONST_M1:
+            case Opcodes.ICONST_0:
+            case Opcodes.ICONST_1:
+            case Opcodes.ICONST_2:
+            case Opcodes.ICONST_3:
+            case Opcodes.ICONST_4:
+            case Opcodes.ICONST_5:
+            case Opcodes.FCONST_0:
+            case Opcodes.FCONST_1:
+            case Opcodes.FCONST_2:
+            case Opcodes.BIPUSH:
+            case Opcodes.SIPUSH:
+            case Opcodes.ILOAD:
+            case Opcodes.FLOAD:
+            case Opcodes.ALOAD:
+            case Opcodes.NEW:
+                return new int[]{0, 1};
+            case Opcodes.LCONST_0:
+            case Opcodes.LCONST_1:
+            case Opcodes.DCONST_0:
+            case Opcodes.DCONST_1:
+            case Opcodes.LLOAD:
+            case Opcodes.DLOAD:
+                return new int[]{0, 2};
+            case Opcodes.LDC:
+                Object constant = ((LdcInsnNode) insn).cst;
+                return new int[]{0, constant instanceof Long || constant instanceof Double ? 2 : 1};
+            case Opcodes.ISTORE:
+            case Opcodes.FSTORE:
+            case Opcodes.ASTORE:
+            case Opcodes.POP:
+                return new int[]{1, 0};
+            case Opcodes.LSTORE:
+            case Opcodes.DSTORE:
+            case Opcodes.POP2:
+                return new int[]{2, 0};
+            case Opcodes.IALOAD:
+            case Opcodes.FALOAD:
+            case Opcodes.AALOAD:
+            case Opcodes.BALOAD:
+            case Opcodes.CALOAD:
+            case Opcodes.SALOAD:
+                return new int[]{2, 1};
+            case Opcodes.LALOAD:
+            case Opcodes.DALOAD:
+                return new int[]{2, 2};
+            case Opcodes.IASTORE:
+            case Opcodes.FASTORE:
+            case Opcodes.AASTORE:
+            case Opcodes.BASTORE:
+            case Opcodes.CASTORE:
+            case Opcodes.SASTORE:
+                return new int[]{3, 0};
+            case Opcodes.LASTORE:
+            case Opcodes.DASTORE:
+                return new int[]{4, 0};
+            case Opcodes.DUP:
+                return new int[]{1, 2};
+            case Opcodes.DUP2:
+                return new int[]{2, 4};
+            case Opcodes.IADD:
+            case Opcodes.FADD:
+            case Opcodes.ISUB:
+            case Opcodes.FSUB:
+            case Opcodes.IMUL:
+            case Opcodes.FMUL:
+            case Opcodes.IDIV:
+            case Opcodes.FDIV:
+            case Opcodes.IREM:
+            case Opcodes.FREM:
+            case Opcodes.ISHL:
+            case Opcodes.ISHR:
+            case Opcodes.IUSHR:
+            case Opcodes.IAND:
+            case Opcodes.IOR:
+            case Opcodes.IXOR:
+            case Opcodes.FCMPL:
+            case Opcodes.FCMPG:
+                return new int[]{2, 1};
+            case Opcodes.LADD:
+            case Opcodes.DADD:
+            case Opcodes.LSUB:
+            case Opcodes.DSUB:
+            case Opcodes.LMUL:
+            case Opcodes.DMUL:
+            case Opcodes.LDIV:
+            case Opcodes.DDIV:
+            case Opcodes.LREM:
+            case Opcodes.DREM:
+            case Opcodes.LAND:
+            case Opcodes.LOR:
+            case Opcodes.LXOR:
+                return new int[]{4, 2};
+            case Opcodes.LSHL:
+            case Opcodes.LSHR:
+            case Opcodes.LUSHR:
+                return new int[]{3, 2};
+            case Opcodes.LCMP:
+            case Opcodes.DCMPL:
+            case Opcodes.DCMPG:
+                return new int[]{4, 1};
+            case Opcodes.INEG:
+            case Opcodes.FNEG:
+            case Opcodes.I2F:
+            case Opcodes.F2I:
+            case Opcodes.I2B:
+            case Opcodes.I2C:
+            case Opcodes.I2S:
+            case Opcodes.NEWARRAY:
+            case Opcodes.ANEWARRAY:
+            case Opcodes.ARRAYLENGTH:
+            case Opcodes.CHECKCAST:
+            case Opcodes.INSTANCEOF:
+                return new int[]{1, 1};
+            case Opcodes.LNEG:
+            case Opcodes.DNEG:
+            case Opcodes.L2D:
+            case Opcodes.D2L:
+                return new int[]{2, 2};
+            case Opcodes.I2L:
+            case Opcodes.I2D:
+            case Opcodes.F2L:
+            case Opcodes.F2D:
+                return new int[]{1, 2};
+            case Opcodes.L2I:
+            case Opcodes.L2F:
+            case Opcodes.D2I:
+            case Opcodes.D2F:
+                return new int[]{2, 1};
+            case Opcodes.IINC:
+                return new int[]{0, 0};
+            case Opcodes.GETSTATIC:
+                return new int[]{0, Type.getType(((FieldInsnNode) insn).desc).getSize()};
+            case Opcodes.GETFIELD:
+                return new int[]{1, Type.getType(((FieldInsnNode) insn).desc).getSize()};
+            case Opcodes.PUTSTATIC:
+                return new int[]{Type.getType(((FieldInsnNode) insn).desc).getSize(), 0};
+            case Opcodes.PUTFIELD:
+                return new int[]{1 + Type.getType(((FieldInsnNode) insn).desc).getSize(), 0};
+            case Opcodes.INVOKEVIRTUAL:
+            case Opcodes.INVOKESPECIAL:
+            case Opcodes.INVOKESTATIC:
+            case Opcodes.INVOKEINTERFACE:
+                int sizes = Type.getArgumentsAndReturnSizes(((MethodInsnNode) insn).desc);
+                int arguments = sizes >> 2;
+                return new int[]{opcode == Opcodes.INVOKESTATIC ? arguments - 1 : arguments, sizes & 0x03};
+            case Opcodes.INVOKEDYNAMIC:
+                int dynamicSizes = Type.getArgumentsAndReturnSizes(((InvokeDynamicInsnNode) insn).desc);
+                return new int[]{(dynamicSizes >> 2) - 1, dynamicSizes & 0x03};
+            case Opcodes.MULTIANEWARRAY:
+                return new int[]{((MultiANewArrayInsnNode) insn).dims, 1};
+            default:
+                return null;
+        }
+    }
+
+    private static void removeExpression(@NonNull MethodNode method,
+                                         @NonNull AbstractInsnNode start,
+                                         @NonNull MethodInsnNode call) {
+        AbstractInsnNode insn = start;
+        while (insn != call) {
+            AbstractInsnNode next = insn.getNext();
+            // Labels and line numbers stay, as other attributes may refer to them
+            if (insn.getOpcode() >= 0) {
+                method.instructions.remove(insn);
+            }
+            insn = next;
+        }
+        method.instructions.remove(call);
+    }
+
+    /*
+     * Drops try/catch blocks left covering no instructions, such as one around a single stripped call, as an empty
+     * exception range fails verification. Their handlers become unreachable, which is allowed.
+     */
+    private static void removeEmptyTryCatchBlocks(@NonNull MethodNode method) {
+        Iterator<TryCatchBlockNode> iterator = method.tryCatchBlocks.iterator();
+        while (iterator.hasNext()) {
+            TryCatchBlockNode tryCatchBlock = iterator.next();
+            AbstractInsnNode insn = tryCatchBlock.start;
+            while (insn != tryCatchBlock.end && insn.getOpcode() < 0) {
+                insn = insn.getNext();
+            }
+            if (insn == tryCatchBlock.end) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // Replaces a call with pops of its logger and arguments, which are still evaluated
+    private static void popArguments(@NonNull MethodNode method, @NonNull MethodInsnNode call) {
+        InsnList pops = new InsnList();
+        Type[] arguments = Type.getArgumentTypes(call.desc);
+        for (int i = arguments.length - 1; i >= 0; i--) {
+            pops.add(new InsnNode(arguments[i].getSize() == 2 ? Opcodes.POP2 : Opcodes.POP));
+        }
+        pops.add(new InsnNode(Opcodes.POP));
+
+        method.instructions.insertBefore(call, pops);
+        method.instructions.remove(call);
+    }
+
+    @NonNull
+    private static Set<LabelNode> findJumpTargets(@NonNull MethodNode method) {
+        Set<LabelNode> targets = new HashSet<>();
+        for (AbstractInsnNode insn : method.instructions.toArray()) {
+            if (insn instanceof JumpInsnNode) {
+                targets.add(((JumpInsnNode) insn).label);
+            } else if (insn instanceof TableSwitchInsnNode) {
+                targets.add(((TableSwitchInsnNode) insn).dflt);
+                targets.addAll(((TableSwitchInsnNode) insn).labels);
+            } else if (insn instanceof LookupSwitchInsnNode) {
+                targets.add(((LookupSwitchInsnNode) insn).dflt);
+                targets.addAll(((LookupSwitchInsnNode) insn).labels);
+            }
+        }
+
+        for (TryCatchBlockNode tryCatchBlock : method.tryCatchBlocks) {
+            targets.add(tryCatchBlock.handler);
+        }
+        return targets;
+    }
+
+    @Nullable
+    private static AbstractInsnNode getNextInstruction(@NonNull AbstractInsnNode insn) {
+        AbstractInsnNode next = insn.getNext();
+        while (next != null && next.getOpcode() < 0) {
+            next = next.getNext();
+        }
+        return next;
+    }
+
+    @Nullable
+    private static AbstractInsnNode getPreviousInstruction(@NonNull AbstractInsnNode insn) {
+        AbstractInsnNode previous = insn.getPrevious();
+        while (previous != null && previous.getOpcode() < 0) {
+            previous = previous.getPrevious();
+        }
+        return previous;
+    }
+
+    @NonNull
+    private static byte[] readFully(@NonNull InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+
+        if (!(input instanceof ZipInputStream)) {
+            input.close();
+        }
+        return output.toByteArray();
+    }
+
+    private static void writeFile(@NonNull File file, @NonNull byte[] bytes) throws IOException {
+        OutputStream output = new FileOutputStream(file);
+        try {
+            output.write(bytes);
+        } finally {
+            output.close();
+        }
+    }
+}
@@ -30,6 +30,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
 import static javax.lang.model.element.Modifier.*;
@@ -45,18 +46,39 @@ public final class BunyanGenerator {
     private static final String BUNYAN_OVERRIDES_XML = "/bunyan-overrides.xml";
 
     private static final String XML_ATTR_CLASS = "class";
+    private static final String XML_ATTR_PACKAGE = "package";
     private static final String XML_ATTR_LEVEL = "level";
     private static final String XML_ATTR_TAGPATTERN = "tagPattern";
+    private static final String XML_ATTR_ENABLED = "enabled";
+    private static final String XML_ATTR_BUFFER_SIZE = "bufferSize";
+    private static final String XML_ATTR_OVERFLOW = "overflow";
+    private static final String XML_ATTR_OVERFLOW_LEVEL = "overflowLevel";
+    private static final String XML_ATTR_DUPLICATE_WINDOW = "duplicateWindow";
 
     private static final String XML_GLOBAL = "global";
     private static final String XML_APPENDER = "appender";
     private static final String XML_LOGGER = "logger";
+    private static final String XML_ASYNC = "async";
 
     private static final String METHOD_APPENDER_LIST = "getAppenderList";
     private static final String METHOD_APPENDER_TAGPATTERN_MAP = "getAppenderTagPatternMap";
+    private static final String METHOD_APPENDER_THRESHOLD_MAP = "getAppenderThresholdMap";
     private static final String METHOD_LOGGER_THRESHOLD_MAP = "getLoggerThresholdMap";
+    private static final String METHOD_LOGGER_DUPLICATE_WINDOW_MAP = "getLoggerDuplicateWindowMap";
+    private static final String METHOD_PACKAGE_TRIE_SEGMENTS = "getPackageTrieSegments";
+    private static final String METHOD_PACKAGE_TRIE_CHILDREN = "getPackageTrieChildren";
+    private static final String METHOD_PACKAGE_TRIE_LEVELS = "getPackageTrieLevels";
     private static final String METHOD_GLOBAL_LEVEL = "getGlobalLevel";
     private static final String METHOD_GLOBAL_TAG_PATTERN = "getGlobalTagPattern";
+    private static final String METHOD_GLOBAL_DUPLICATE_WINDOW = "getGlobalDuplicateWindow";
+    private static final String METHOD_ASYNC_ENABLED = "getAsyncEnabled";
+    private static final String METHOD_ASYNC_BUFFER_SIZE = "getAsyncBufferSize";
+    private static final String METHOD_ASYNC_OVERFLOW_POLICY = "getAsyncOverflowPolicy";
+    private static final String METHOD_ASYNC_OVERFLOW_LEVEL = "getAsyncOverflowLevel";
+
+    private static final String OVERFLOW_BLOCK = "BLOCK";
+    private static final String OVERFLOW_DROP_OLDEST = "DROP_OLDEST";
+    private static final String OVERFLOW_DROP_BELOW_LEVEL = "DROP_BELOW_LEVEL";
 
     private static final String VAR_LOCAL_LIST = "list";
     private static final String VAR_LOCAL_MAP = "map";
@@ -67,15 +89,26 @@ public final class BunyanGenerator {
     private static final String TAG_THREAD_IF_NOT_MAIN = "%t";
     private static final String TAG_THREAD_ALWAYS = "%T";
     private static final String TAG_LEVEL = "%l";
+    private static final String TAG_LINE = "%L";
 
     private static final Logger log = LoggerFactory.getLogger(BunyanGenerator.class.getSimpleName());
 
     @NonNull
     private final Map<String, String> mAppenderTagPatterns = new HashMap<>();
 
+    @NonNull
+    private final Map<String, String> mAppenderThresholds = new HashMap<>();
+
     @NonNull
     private final Map<String, String> mLoggerThresholds = new HashMap<>();
 
+    @NonNull
+    private final Map<String, String> mPackageThresholds = new HashMap<>();
+
+    // Milliseconds, as strings to suit createMapMethod
+    @NonNull
+    private final Map<String, String> mLoggerDuplicateWindows = new HashMap<>();
+
     @NonNull
     private final List<String> mAppenders = new ArrayList<>();
 
@@ -96,6 +129,20 @@ public final class BunyanGenerator {
     @NonNull
     private String mGlobalTagPattern = "%S";
 
+    private int mGlobalDuplicateWindow = 0;
+
+    private boolean mAsyncEnabled = false;
+
+    private int mAsyncBufferSize = 1024;
+
+    @NonNull
+    private String mAsyncOverflowPolicy = OVERFLOW_BLOCK;
+
+    @NonNull
+    private String mAsyncOverflowLevel = "WARN";
+
+    private boolean mConfigParsed;
+
 
     public BunyanGenerator(@NonNull String baseOutputDir,
                            @NonNull String taskName,
@@ -133,6 +180,13 @@ public final class BunyanGenerator {
         log("Time to build was " + lengthMillis + "ms");
     }
 
+    // Logger thresholds as configured for this variant, to decide which logging calls can be stripped
+    @NonNull
+    public BunyanThresholdResolver createThresholdResolver() {
+        parseConfig();
+        return new BunyanThresholdResolver(mGlobalLevel, mLoggerThresholds, mPackageThresholds);
+    }
+
     public boolean isBunyanHashValid() {
         String bunyanOutputFile = mBaseOutputDir + '/' + PACKAGE_NAME.replace('.', '/') + "/" + CLASS_NAME + ".java";
         long startNanos = System.nanoTime();
@@ -213,23 +267,21 @@ public final class BunyanGenerator {
         TypeSpec.Builder builder = TypeSpec.classBuilder(CLASS_NAME)
                 .addModifiers(PUBLIC, FINAL);
 
-        try {
-            parseFile(BUNYAN_XML);
-        } catch (XmlPullParserException | IOException e) {
-            logError("Failure parsing " + BUNYAN_XML, e, false);
-        }
-
-        try {
-            parseFile(BUNYAN_OVERRIDES_XML);
-        } catch (XmlPullParserException | IOException e) {
-            logError("Failure parsing " + BUNYAN_OVERRIDES_XML, e, false);
-        }
+        parseConfig();
 
         builder.addMethod(createStringMethod(METHOD_GLOBAL_LEVEL, mGlobalLevel));
         builder.addMethod(createStringMethod(METHOD_GLOBAL_TAG_PATTERN, mGlobalTagPattern));
+        builder.addMethod(createIntMethod(METHOD_GLOBAL_DUPLICATE_WINDOW, mGlobalDuplicateWindow));
+        builder.addMethod(createBooleanMethod(METHOD_ASYNC_ENABLED, mAsyncEnabled));
+        builder.addMethod(createIntMethod(METHOD_ASYNC_BUFFER_SIZE, mAsyncBufferSize));
+        builder.addMethod(createStringMethod(METHOD_ASYNC_OVERFLOW_POLICY, mAsyncOverflowPolicy));
+        builder.addMethod(createStringMethod(METHOD_ASYNC_OVERFLOW_LEVEL, mAsyncOverflowLevel));
         builder.addMethod(createAppenderListMethod(mAppenders));
         builder.addMethod(createMapMethod(mLoggerThresholds, METHOD_LOGGER_THRESHOLD_MAP));
+        builder.addMethod(createMapMethod(mLoggerDuplicateWindows, METHOD_LOGGER_DUPLICATE_WINDOW_MAP));
+        addPackageTrieMethods(builder);
         builder.addMethod(createMapMethod(mAppenderTagPatterns, METHOD_APPENDER_TAGPATTERN_MAP));
+        builder.addMethod(createMapMethod(mAppenderThresholds, METHOD_APPENDER_THRESHOLD_MAP));
 
         JavaFile.Builder javaBuilder = JavaFile.builder(PACKAGE_NAME, builder.build())
                 .indent("    ");
@@ -241,6 +293,26 @@ public final class BunyanGenerator {
         return javaBuilder.build();
     }
 
+    // Both files are only parsed once, as the transform also needs the configuration
+    private void parseConfig() {
+        if (mConfigParsed) {
+            return;
+        }
+        mConfigParsed = true;
+
+        try {
+            parseFile(BUNYAN_XML);
+        } catch (XmlPullParserException | IOException e) {
+            logError("Failure parsing " + BUNYAN_XML, e, false);
+        }
+
+        try {
+            parseFile(BUNYAN_OVERRIDES_XML);
+        } catch (XmlPullParserException | IOException e) {
+            logError("Failure parsing " + BUNYAN_OVERRIDES_XML, e, false);
+        }
+    }
+
     private void parseFile(@NonNull String fileName) throws XmlPullParserException, IOException {
         File file = new File(mVariantAssetDir + fileName);
         if (!file.exists()) {
@@ -261,13 +333,34 @@ public final class BunyanGenerator {
                 String name = xpp.getName();
                 if (XML_LOGGER.equals(name)) {
                     String className = xpp.getAttributeValue(null, XML_ATTR_CLASS);
+                    String packageName = xpp.getAttributeValue(null, XML_ATTR_PACKAGE);
                     String levelName = xpp.getAttributeValue(null, XML_ATTR_LEVEL);
-                    if (isEmpty(className) || isEmpty(levelName)) {
-                        log("Invalid logger specified: " + className + " -- " + levelName);
+                    String duplicateWindow = xpp.getAttributeValue(null, XML_ATTR_DUPLICATE_WINDOW);
+                    boolean hasSetting = !isEmpty(levelName) || !isEmpty(duplicateWindow);
+                    if (isEmpty(className) == isEmpty(packageName) || !hasSetting) {
+                        log("Invalid logger specified: " + className + " / " + packageName + " -- " + levelName);
                         eventType = xpp.next();
                         continue;
                     }
-                    mLoggerThresholds.put(className, levelName);
+
+                    if (!isEmpty(duplicateWindow)) {
+                        if (isEmpty(className)) {
+                            throw new IllegalArgumentException(fileName + " only supports " +
+                                    XML_ATTR_DUPLICATE_WINDOW + " for a logger " + XML_ATTR_CLASS + "\n" +
+                                    "Found it for " + packageName);
+                        }
+                        int window = parseDuplicateWindow(fileName, duplicateWindow);
+                        mLoggerDuplicateWindows.put(className, String.valueOf(window));
+                    }
+
+                    // A class logger may set only a duplicate window, keeping the level it would otherwise get
+                    if (!isEmpty(levelName)) {
+                        if (!isEmpty(className)) {
+                            mLoggerThresholds.put(className, levelName);
+                        } else {
+                            mPackageThresholds.put(parsePackage(fileName, packageName), levelName);
+                        }
+                    }
                 } else if (XML_APPENDER.equals(name)) {
                     String className = xpp.getAttributeValue(null, XML_ATTR_CLASS);
                     if (isEmpty(className)) {
@@ -280,6 +373,11 @@ public final class BunyanGenerator {
                         mAppenders.add(className);
                     }
 
+                    String levelName = xpp.getAttributeValue(null, XML_ATTR_LEVEL);
+                    if (!isEmpty(levelName)) {
+                        mAppenderThresholds.put(className, levelName);
+                    }
+
                     String tagPattern = xpp.getAttributeValue(null, XML_ATTR_TAGPATTERN);
                     if (!isEmpty(tagPattern)) {
                         int nameCount = getMatchCount(tagPattern, TAG_NAME_LONG);
@@ -307,6 +405,11 @@ public final class BunyanGenerator {
                             throw new IllegalArgumentException(fileName + " cannot have more than one of " + TAG_LEVEL + "\n" +
                                     "Found " + levelCount + " in " + tagPattern);
                         }
+                        int lineCount = getMatchCount(tagPattern, TAG_LINE);
+                        if (lineCount > 1) {
+                            throw new IllegalArgumentException(fileName + " cannot have more than one of " + TAG_LINE + "\n" +
+                                    "Found " + lineCount + " in " + tagPattern);
+                        }
                         mAppenderTagPatterns.put(className, tagPattern);
                     }
                 } else if (XML_GLOBAL.equals(name)) {
@@ -319,6 +422,13 @@ public final class BunyanGenerator {
                     if (!isEmpty(globalTagPattern)) {
                         mGlobalTagPattern = globalTagPattern;
                     }
+
+                    String globalDuplicateWindow = xpp.getAttributeValue(null, XML_ATTR_DUPLICATE_WINDOW);
+                    if (!isEmpty(globalDuplicateWindow)) {
+                        mGlobalDuplicateWindow = parseDuplicateWindow(fileName, globalDuplicateWindow);
+                    }
+                } else if (XML_ASYNC.equals(name)) {
+                    parseAsync(fileName, xpp);
                 }
             }
 
@@ -328,6 +438,73 @@ public final class BunyanGenerator {
         closeQuietly(inputStream);
     }
 
+    @NonNull
+    private static String parsePackage(@NonNull String fileName, @NonNull String packageName) {
+        String trimmed = packageName.trim();
+        if (trimmed.endsWith(".*")) {
+            trimmed = trimmed.substring(0, trimmed.length() - 2);
+        }
+
+        if (trimmed.isEmpty() || trimmed.startsWith(".") || trimmed.endsWith(".") || trimmed.contains("..")) {
+            throw new IllegalArgumentException(fileName + " has an invalid " + XML_ATTR_PACKAGE + ": " + packageName);
+        }
+        return trimmed;
+    }
+
+    // Milliseconds, where 0 turns collapsing off again (i.e. for one logger, or in an overrides file)
+    private static int parseDuplicateWindow(@NonNull String fileName, @NonNull String window) {
+        int millis;
+        try {
+            millis = Integer.parseInt(window.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(fileName + " has an invalid " + XML_ATTR_DUPLICATE_WINDOW + "\n" +
+                    "Found " + window);
+        }
+
+        if (millis < 0) {
+            throw new IllegalArgumentException(fileName + " cannot have a negative " + XML_ATTR_DUPLICATE_WINDOW +
+                    "\n" + "Found " + window);
+        }
+        return millis;
+    }
+
+    private void parseAsync(@NonNull String fileName, @NonNull XmlPullParser xpp) {
+        String enabled = xpp.getAttributeValue(null, XML_ATTR_ENABLED);
+        if (!isEmpty(enabled)) {
+            mAsyncEnabled = Boolean.parseBoolean(enabled.trim());
+        }
+
+        String bufferSize = xpp.getAttributeValue(null, XML_ATTR_BUFFER_SIZE);
+        if (!isEmpty(bufferSize)) {
+            try {
+                mAsyncBufferSize = Integer.parseInt(bufferSize.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(fileName + " has an invalid " + XML_ATTR_BUFFER_SIZE + ": " + bufferSize);
+            }
+
+            if (mAsyncBufferSize <= 0) {
+                throw new IllegalArgumentException(fileName + " must have a positive " + XML_ATTR_BUFFER_SIZE + "\n" +
+                        "Found " + bufferSize);
+            }
+        }
+
+        String overflow = xpp.getAttributeValue(null, XML_ATTR_OVERFLOW);
+        if (!isEmpty(overflow)) {
+            if (!OVERFLOW_BLOCK.equals(overflow) && !OVERFLOW_DROP_OLDEST.equals(overflow) &&
+                    !OVERFLOW_DROP_BELOW_LEVEL.equals(overflow)) {
+                throw new IllegalArgumentException(fileName + " " + XML_ATTR_OVERFLOW + " must be one of " +
+                        OVERFLOW_BLOCK + ", " + OVERFLOW_DROP_OLDEST + " or " + OVERFLOW_DROP_BELOW_LEVEL + "\n" +
+                        "Found " + overflow);
+            }
+            mAsyncOverflowPolicy = overflow;
+        }
+
+        String overflowLevel = xpp.getAttributeValue(null, XML_ATTR_OVERFLOW_LEVEL);
+        if (!isEmpty(overflowLevel)) {
+            mAsyncOverflowLevel = overflowLevel;
+        }
+    }
+
     @NonNull
     private MethodSpec createAppenderListMethod(@NonNull List<String> classes) {
         TypeName type = TypeVariableName.get(Class.class);
@@ -347,6 +524,62 @@ public final class BunyanGenerator {
         return builder.build();
     }
 
+    /*
+     * Package thresholds are emitted as a trie of name segments, flattened breadth first so that the children of
+     * every node are contiguous. Node 0 is the root, and the children of node i run from children[i] up to
+     * children[i + 1]. Levels are null for nodes without a threshold of their own.
+     */
+    private void addPackageTrieMethods(@NonNull TypeSpec.Builder builder) {
+        PackageNode root = new PackageNode("");
+        for (Map.Entry<String, String> entry : mPackageThresholds.entrySet()) {
+            PackageNode node = root;
+            for (String segment : entry.getKey().split("\\.")) {
+                PackageNode child = node.children.get(segment);
+                if (child == null) {
+                    child = new PackageNode(segment);
+                    node.children.put(segment, child);
+                }
+                node = child;
+            }
+            node.level = entry.getValue();
+        }
+
+        List<PackageNode> nodes = new ArrayList<>();
+        nodes.add(root);
+        List<Integer> children = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            children.add(nodes.size());
+            nodes.addAll(nodes.get(i).children.values());
+        }
+        children.add(nodes.size());
+
+        CodeBlock.Builder segments = CodeBlock.builder();
+        CodeBlock.Builder levels = CodeBlock.builder();
+        for (int i = 0; i < nodes.size(); i++) {
+            String separator = i > 0 ? ", " : "";
+            segments.add(separator + "$S", nodes.get(i).segment);
+            levels.add(separator + "$S", nodes.get(i).level);
+        }
+
+        CodeBlock.Builder childIndices = CodeBlock.builder();
+        for (int i = 0; i < children.size(); i++) {
+            childIndices.add((i > 0 ? ", " : "") + "$L", children.get(i));
+        }
+
+        builder.addMethod(createArrayMethod(METHOD_PACKAGE_TRIE_SEGMENTS, String[].class, segments.build()));
+        builder.addMethod(createArrayMethod(METHOD_PACKAGE_TRIE_CHILDREN, int[].class, childIndices.build()));
+        builder.addMethod(createArrayMethod(METHOD_PACKAGE_TRIE_LEVELS, String[].class, levels.build()));
+    }
+
+    @NonNull
+    private MethodSpec createArrayMethod(@NonNull String methodName, @NonNull Class type, @NonNull CodeBlock values) {
+        MethodSpec.Builder builder = MethodSpec.methodBuilder(methodName)
+                .addModifiers(STATIC)
+                .returns(type);
+        builder.addStatement("return new $T{$L}", type, values);
+        return builder.build();
+    }
+
     @NonNull
     private MethodSpec createMapMethod(@NonNull Map<String, String> entries, @NonNull String methodName) {
         TypeName stringType = TypeVariableName.get(String.class);
@@ -375,6 +608,24 @@ public final class BunyanGenerator {
         return builder.build();
     }
 
+    @NonNull
+    private MethodSpec createBooleanMethod(@NonNull String methodName, boolean value) {
+        MethodSpec.Builder builder = MethodSpec.methodBuilder(methodName)
+                .addModifiers(STATIC)
+                .returns(boolean.class);
+        builder.addStatement("return $L", value);
+        return builder.build();
+    }
+
+    @NonNull
+    private MethodSpec createIntMethod(@NonNull String methodName, int value) {
+        MethodSpec.Builder builder = MethodSpec.methodBuilder(methodName)
+                .addModifiers(STATIC)
+                .returns(int.class);
+        builder.addStatement("return $L", value);
+        return builder.build();
+    }
+
     private static int getMatchCount(@NonNull String string, @NonNull String pattern) {
         int lastIndex = 0;
         int count = 0;
@@ -401,4 +652,21 @@ public final class BunyanGenerator {
     private String[] getComments() {
         return new String[]{BUNYAN_HASH, "Package: " + PACKAGE_NAME, "Class: " + CLASS_NAME, "Debug: " + mDebugLogging};
     }
+
+    private static final class PackageNode {
+
+        @NonNull
+        final String segment;
+
+        // Sorted, so output is the same from one build to the next
+        @NonNull
+        final Map<String, PackageNode> children = new TreeMap<>();
+
+        @Nullable
+        String level;
+
+        PackageNode(@NonNull String segment) {
+            this.segment = segment;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 Kane O'Riley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package me.oriley.bunyan;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Resolves logger thresholds at build time the same way Bunyan does at runtime: a logger's own threshold, then the
+ * most specific package threshold, then the global level. Levels use the android.util.Log values.
+ */
+public final class BunyanThresholdResolver {
+
+    static final int VERBOSE = 2;
+    static final int DEBUG = 3;
+    static final int INFO = 4;
+    static final int WARN = 5;
+    static final int ERROR = 6;
+    static final int ASSERT = 7;
+
+    private final int mGlobalThreshold;
+
+    @NonNull
+    private final Map<String, Integer> mLoggerThresholds = new HashMap<>();
+
+    @NonNull
+    private final Map<String, Integer> mPackageThresholds = new HashMap<>();
+
+    // Lowest threshold any logger can have, for calls whose logger can't be identified
+    private final int mMinimumThreshold;
+
+
+    BunyanThresholdResolver(@NonNull String globalLevel,
+                            @NonNull Map<String, String> loggerLevels,
+                            @NonNull Map<String, String> packageLevels) {
+        mGlobalThreshold = parseLevel(globalLevel);
+
+        int minimum = mGlobalThreshold;
+        for (Map.Entry<String, String> entry : loggerLevels.entrySet()) {
+            int threshold = parseLevel(entry.getValue());
+            mLoggerThresholds.put(entry.getKey(), threshold);
+            minimum = Math.min(minimum, threshold);
+        }
+        for (Map.Entry<String, String> entry : packageLevels.entrySet()) {
+            int threshold = parseLevel(entry.getValue());
+            mPackageThresholds.put(entry.getKey(), threshold);
+            minimum = Math.min(minimum, threshold);
+        }
+        mMinimumThreshold = minimum;
+    }
+
+
+    int getThreshold(@Nullable String loggerName) {
+        if (loggerName == null) {
+            return mMinimumThreshold;
+        }
+
+        Integer threshold = mLoggerThresholds.get(loggerName);
+        if (threshold != null) {
+            return threshold;
+        }
+
+        // Most specific package first, which may be the logger name itself
+        String name = loggerName;
+        while (true) {
+            threshold = mPackageThresholds.get(name);
+            if (threshold != null) {
+                return threshold;
+            }
+
+            int separator = name.lastIndexOf('.');
+            if (separator <= 0) {
+                return mGlobalThreshold;
+            }
+            name = name.substring(0, separator);
+        }
+    }
+
+    // Level of a logging method, or -1 if it isn't one
+    static int getMethodLevel(@NonNull String methodName) {
+        switch (methodName) {
+            case "trace":
+                return VERBOSE;
+            case "debug":
+                return DEBUG;
+            case "info":
+                return INFO;
+            case "warn":
+                return WARN;
+            case "error":
+                return ERROR;
+            case "wtf":
+                return ASSERT;
+            default:
+                return -1;
+        }
+    }
+
+    // Same fallback as at runtime
+    private static int parseLevel(@Nullable String level) {
+        if ("TRACE".equals(level)) {
+            return VERBOSE;
+        } else if ("DEBUG".equals(level)) {
+            return DEBUG;
+        } else if ("INFO".equals(level)) {
+            return INFO;
+        } else if ("WARN".equals(level)) {
+            return WARN;
+        } else if ("ERROR".equals(level)) {
+            return ERROR;
+        } else if ("ASSERT".equals(level)) {
+            return ASSERT;
+        } else {
+            return INFO;
+        }
+    }
+}